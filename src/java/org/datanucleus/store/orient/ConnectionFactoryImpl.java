@@ -17,33 +17,53 @@ Contributors:
  **********************************************************************/
 package org.datanucleus.store.orient;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.transaction.xa.XAResource;
 
 import org.datanucleus.OMFContext;
 import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusOptimisticException;
 import org.datanucleus.store.connection.AbstractConnectionFactory;
 import org.datanucleus.store.connection.AbstractManagedConnection;
+import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 
 import com.orientechnologies.orient.core.db.object.ODatabaseObject;
 import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 /**
  * Implementation of a ConnectionFactory for Orient Database. </p>
+ * Registered as "orient/tx" and "orient/nontx", both handing out handles from the pool of the store. Orient has no
+ * separate non-transactional database class: an ODatabaseObjectTx on which no Orient transaction is begun (as for
+ * all pooled handles) writes each save and delete straight to the storage. So the two factories hand out the same
+ * kind of handle, and connections of "orient/nontx" only differ in not committing when released.
  */
 public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 	protected static final Localiser	LOCALISER_ORIENT	= Localiser.getInstance("org.datanucleus.store.orient.Localisation",
 																													OrientStoreManager.class.getClassLoader());
 
+	/** Maximum number of records read by one query when checking versions. */
+	private static final int					VERSION_CHECK_BATCH_SIZE	= 500;
+
 	private String										url;
 
-	private String										username;
+	/** Whether this factory hands out connections for use in a transaction (resource type "tx") or not ("nontx"). */
+	private boolean										transactional;
 
-	private String										password;
+	/** Whether the versions written in a transaction are checked against the datastore before it commits. */
+	private boolean										checkVersionsOnCommit;
 
 	/**
 	 * Constructor
@@ -56,10 +76,11 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 	public ConnectionFactoryImpl(OMFContext omfContext, String resourceType) {
 		super(omfContext, resourceType);
 
+		this.transactional = !"nontx".equals(resourceType);
+		this.checkVersionsOnCommit = OrientPropertyValidator.VERSION_CHECK_COMMIT.equalsIgnoreCase(omfContext
+				.getPersistenceConfiguration().getStringProperty("datanucleus.orient.optimisticVersionCheck"));
 		this.url = omfContext.getStoreManager().getConnectionURL();
-		this.username = omfContext.getStoreManager().getConnectionUserName();
-		this.password = omfContext.getStoreManager().getConnectionPassword();
-		if (!(url.startsWith("remote:") || url.startsWith("local:"))) {
+		if (!(url.startsWith("remote:") || url.startsWith("local:") || url.startsWith("memory:"))) {
 			throw new NucleusException(LOCALISER_ORIENT.msg("Orient.URLInvalid", url));
 		}
 	}
@@ -82,7 +103,10 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 	 * Implementation of a ManagedConnection for Orient.
 	 */
 	class ManagedConnectionImpl extends AbstractManagedConnection {
-		OMFContext	omf;
+		OMFContext											omf;
+
+		/** Versions written by this transaction, keyed by record id, that the records must still be at when it commits. */
+		private final Map<ORID, ExpectedVersion>	expectedVersions	= new LinkedHashMap<ORID, ExpectedVersion>();
 
 		/**
 		 * Constructor.
@@ -108,14 +132,95 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 		}
 
 		/**
-		 * Create a connection to the resource
+		 * Method to record the version that an object's record was written at in this transaction, so that it can be
+		 * checked that nobody else has changed the record since when the transaction commits. Replaces any version
+		 * recorded earlier for the record.
+		 * 
+		 * @param sm
+		 *          StateManager of the object
+		 * @param rid
+		 *          Id of the record
+		 * @param version
+		 *          Version of the record after the write
+		 */
+		public void expectVersion(ObjectProvider sm, ORID rid, long version) {
+			expectedVersions.put(new ORecordId(rid.getClusterId(), rid.getClusterPosition()), new ExpectedVersion(sm, version));
+		}
+
+		/**
+		 * Method to stop checking the version of a record, since this transaction has deleted it.
+		 * 
+		 * @param rid
+		 *          Id of the record
+		 */
+		public void forgetVersion(ORID rid) {
+			expectedVersions.remove(new ORecordId(rid.getClusterId(), rid.getClusterPosition()));
+		}
+
+		/**
+		 * Method to check the versions written in this transaction against the datastore, reading the id and version of
+		 * the records in batches, with one query per batch.
+		 * 
+		 * @param db
+		 *          The Orient database
+		 * @return An exception for each object whose record has since been changed or deleted by someone else
+		 */
+		private List<NucleusOptimisticException> findChangedObjects(ODatabaseObjectTx db) {
+			List<NucleusOptimisticException> failures = new ArrayList<NucleusOptimisticException>();
+			if (expectedVersions.isEmpty()) {
+				return failures;
+			}
+
+			Map<ORID, ExpectedVersion> unconfirmed = new LinkedHashMap<ORID, ExpectedVersion>(expectedVersions);
+			List<ORID> rids = new ArrayList<ORID>(expectedVersions.keySet());
+			long startTime = System.currentTimeMillis();
+			for (int batchStart = 0; batchStart < rids.size(); batchStart += VERSION_CHECK_BATCH_SIZE) {
+				List<ORID> batch = rids.subList(batchStart, Math.min(batchStart + VERSION_CHECK_BATCH_SIZE, rids.size()));
+				StringBuffer sql = new StringBuffer("select @rid as rid, @version as version from [");
+				for (int i = 0; i < batch.size(); i++) {
+					if (i > 0) {
+						sql.append(", ");
+					}
+					ORID rid = batch.get(i);
+					sql.append('#').append(rid.getClusterId()).append(':').append(rid.getClusterPosition());
+				}
+				sql.append("]");
+
+				List<ODocument> rows = db.getUnderlying().query(new OSQLSynchQuery<ODocument>(sql.toString()));
+				for (int i = 0; i < rows.size(); i++) {
+					ODocument row = rows.get(i);
+					Object rid = row.field("rid");
+					Object version = row.field("version");
+					if (rid instanceof ORID && version instanceof Number) {
+						ORID key = new ORecordId(((ORID) rid).getClusterId(), ((ORID) rid).getClusterPosition());
+						ExpectedVersion expected = unconfirmed.get(key);
+						if (expected != null && expected.version == ((Number) version).longValue()) {
+							// Record is as this transaction left it, so whatever remains (changed or deleted) has failed
+							unconfirmed.remove(key);
+						}
+					}
+				}
+			}
+			if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled()) {
+				NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER_ORIENT.msg("Orient.Version.Checked", "" + rids.size(), ""
+						+ (System.currentTimeMillis() - startTime)));
+			}
+
+			Iterator<ExpectedVersion> iter = unconfirmed.values().iterator();
+			while (iter.hasNext()) {
+				ObjectProvider sm = iter.next().sm;
+				failures.add(new NucleusOptimisticException(LOCALISER_ORIENT.msg("Orient.Version.ConcurrentModification",
+						sm.toPrintableID(), sm.getInternalObjectId()), sm.getObject()));
+			}
+			return failures;
+		}
+
+		/**
+		 * Obtain a connection to the resource from the pool of the store
 		 */
 		public Object getConnection() {
 			if (conn == null) {
-				NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.connecting", url, username));// TODO
-				conn = new ODatabaseObjectTx(url).open(username, password);
-				NucleusLogger.CONNECTION.info(LOCALISER_ORIENT.msg("Orient.connected", url, username));// TODO
-				((OrientStoreManager) omf.getStoreManager()).registerObjectContainer((ODatabaseObjectTx) conn);
+				conn = ((OrientStoreManager) omf.getStoreManager()).getConnectionPool().borrowConnection();
 			}
 			return conn;
 		}
@@ -129,40 +234,81 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 			}
 
 			ODatabaseObject conn = getOrientConnection();
-			if (conn != null) {
+			try {
+				if (conn != null) {
+
+					String connStr = conn.toString();
+					// Non-transactional connections are used in autocommit mode so have nothing to commit
+					if (transactional && commitOnRelease) {
+						if (!conn.isClosed()) {
+							List<NucleusOptimisticException> failures = (checkVersionsOnCommit ? findChangedObjects((ODatabaseObjectTx) conn)
+									: new ArrayList<NucleusOptimisticException>());
+							if (failures.isEmpty()) {
+								try {
+									conn.commit();
+								} catch (OConcurrentModificationException cme) {
+									// Orient found a record changed since it was written, so look for the objects concerned
+									failures = findChangedObjects((ODatabaseObjectTx) conn);
+									if (failures.isEmpty()) {
+										failures.add(new NucleusOptimisticException(cme.getMessage()));
+									}
+								}
+							}
+							if (!failures.isEmpty()) {
+								// Discard the transaction before the handle goes back to the pool
+								try {
+									conn.rollback();
+								} catch (RuntimeException re) {
+									NucleusLogger.CONNECTION.warn(LOCALISER_ORIENT.msg("Orient.Pool.ResetFailed", connStr, re.getMessage()));
+								}
+								throw new NucleusOptimisticException(LOCALISER_ORIENT.msg("Orient.Version.CheckFailed", ""
+										+ failures.size()), failures.toArray(new Throwable[failures.size()]));
+							}
+							if (NucleusLogger.CONNECTION.isDebugEnabled()) {
+								NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.commitOnClose", connStr));// TODO
+							}
+						}
+					}
 
-				String connStr = conn.toString();
-				if (commitOnRelease) {
 					if (!conn.isClosed()) {
-						conn.commit();
 						if (NucleusLogger.CONNECTION.isDebugEnabled()) {
-							NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.commitOnClose", connStr));// TODO
+							NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.releasingConnection", connStr));
+						}
+					} else {
+						if (NucleusLogger.CONNECTION.isDebugEnabled()) {
+							NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.connectionAlreadyClosed", connStr));// TODO
 						}
 					}
-				}
 
-				if (!conn.isClosed()) {
-					conn.close();
-					if (NucleusLogger.CONNECTION.isDebugEnabled()) {
-						NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.closingConnection", connStr));// TODO
-					}
-				} else {
-					if (NucleusLogger.CONNECTION.isDebugEnabled()) {
-						NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.connectionAlreadyClosed", connStr));// TODO
+				}
+			} finally {
+				try {
+					for (int i = 0; i < listeners.size(); i++) {
+						listeners.get(i).managedConnectionPostClose();
 					}
+				} finally {
+					listeners.clear();
+					expectedVersions.clear();
+					// Hand the database back to the pool rather than closing it, so the next connection skips the open.
+					// Always done, even when the commit failed, so the handle and its permit aren't lost
+					((OrientStoreManager) omf.getStoreManager()).getConnectionPool().returnConnection((ODatabaseObjectTx) conn);
+					this.conn = null;
 				}
-
 			}
+		}
+	}
 
-			try {
-				for (int i = 0; i < listeners.size(); i++) {
-					listeners.get(i).managedConnectionPostClose();
-				}
-			} finally {
-				listeners.clear();
-			}
-			((OrientStoreManager) omf.getStoreManager()).deregisterObjectContainer((ODatabaseObjectTx) conn);
-			this.conn = null;
+	/**
+	 * Version that an object's record is expected to be at.
+	 */
+	private static class ExpectedVersion {
+		final ObjectProvider	sm;
+
+		final long						version;
+
+		ExpectedVersion(ObjectProvider sm, long version) {
+			this.sm = sm;
+			this.version = version;
 		}
 	}
 
@@ -0,0 +1,213 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+
+/**
+ * Registry of the ObjectContainers (Orient databases) currently active for a store. The registry is held as an
+ * immutable array that is replaced by compare-and-set on every change, so registration never takes a lock and
+ * readers iterate over a snapshot while other threads register or deregister. Containers are only weakly
+ * referenced, so one that is discarded without being deregistered doesn't stay reachable from the store; its
+ * cleared entry is dropped on the next change. Each entry also records which persistable classes have already been
+ * registered with its container, so repeat registrations need no lookup in Orient.
+ */
+public class ObjectContainerRegistry
+{
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private static final ODatabaseObjectTx[] NO_CONTAINERS = new ODatabaseObjectTx[0];
+
+    /** Current registered containers. Never modified once published. */
+    private final AtomicReference<Entry[]> containers = new AtomicReference<Entry[]>(EMPTY);
+
+    /**
+     * Registered container, with the names of the classes already registered with it.
+     */
+    private static class Entry extends WeakReference<ODatabaseObjectTx>
+    {
+        final ConcurrentHashMap<String, Boolean> registeredClasses = new ConcurrentHashMap<String, Boolean>();
+
+        Entry(ODatabaseObjectTx cont)
+        {
+            super(cont);
+        }
+    }
+
+    /**
+     * Method to register a container. Does nothing if it is already registered.
+     * @param cont The container
+     */
+    public void add(ODatabaseObjectTx cont)
+    {
+        while (true)
+        {
+            Entry[] current = containers.get();
+            Entry[] updated = new Entry[current.length + 1];
+            int pos = 0;
+            for (int i = 0; i < current.length; i++)
+            {
+                Object registered = current[i].get();
+                if (registered == cont)
+                {
+                    return;
+                }
+                else if (registered != null)
+                {
+                    updated[pos++] = current[i];
+                }
+            }
+            updated[pos++] = new Entry(cont);
+
+            if (containers.compareAndSet(current, trim(updated, pos)))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method to deregister a container. Does nothing if it isn't registered.
+     * @param cont The container
+     */
+    public void remove(ODatabaseObjectTx cont)
+    {
+        while (true)
+        {
+            Entry[] current = containers.get();
+            Entry[] updated = new Entry[current.length];
+            int pos = 0;
+            boolean found = false;
+            for (int i = 0; i < current.length; i++)
+            {
+                Object registered = current[i].get();
+                if (registered == cont)
+                {
+                    found = true;
+                }
+                else if (registered != null)
+                {
+                    updated[pos++] = current[i];
+                }
+            }
+            if (!found)
+            {
+                return;
+            }
+
+            if (containers.compareAndSet(current, trim(updated, pos)))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Accessor for the containers registered at this moment. Later changes to the registry are not reflected in the
+     * returned array.
+     * @return The registered containers
+     */
+    public ODatabaseObjectTx[] getContainers()
+    {
+        Entry[] current = containers.get();
+        if (current.length == 0)
+        {
+            return NO_CONTAINERS;
+        }
+
+        ODatabaseObjectTx[] snapshot = new ODatabaseObjectTx[current.length];
+        int pos = 0;
+        for (int i = 0; i < current.length; i++)
+        {
+            ODatabaseObjectTx cont = current[i].get();
+            if (cont != null)
+            {
+                snapshot[pos++] = cont;
+            }
+        }
+        if (pos < snapshot.length)
+        {
+            ODatabaseObjectTx[] trimmed = new ODatabaseObjectTx[pos];
+            System.arraycopy(snapshot, 0, trimmed, 0, pos);
+            snapshot = trimmed;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Accessor for whether the class has been marked as registered with the container.
+     * @param cont The container
+     * @param className Name of the class
+     * @return Whether it is registered
+     */
+    public boolean isClassRegistered(ODatabaseObjectTx cont, String className)
+    {
+        Entry entry = getEntry(cont);
+        return entry != null && entry.registeredClasses.containsKey(className);
+    }
+
+    /**
+     * Method to mark a class as registered with a container. Does nothing if the container is not registered.
+     * @param cont The container
+     * @param className Name of the class
+     */
+    public void classRegistered(ODatabaseObjectTx cont, String className)
+    {
+        Entry entry = getEntry(cont);
+        if (entry != null)
+        {
+            entry.registeredClasses.put(className, Boolean.TRUE);
+        }
+    }
+
+    private Entry getEntry(ODatabaseObjectTx cont)
+    {
+        Entry[] current = containers.get();
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i].get() == cont)
+            {
+                return current[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to deregister all containers.
+     */
+    public void clear()
+    {
+        containers.set(EMPTY);
+    }
+
+    private static Entry[] trim(Entry[] refs, int length)
+    {
+        if (length == refs.length)
+        {
+            return refs;
+        }
+        Entry[] trimmed = new Entry[length];
+        System.arraycopy(refs, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
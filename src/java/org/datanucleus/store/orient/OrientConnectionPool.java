@@ -0,0 +1,509 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.datanucleus.PersistenceConfiguration;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.util.Localiser;
+import org.datanucleus.util.NucleusLogger;
+
+import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+
+/**
+ * Bounded pool of open Orient database handles for a store. Opening an ODatabaseObjectTx means authenticating and
+ * loading the schema, so handles are opened once, registered with the store manager, and then lent out to the
+ * connection factories rather than being closed after every ManagedConnection. A handle given back is rolled back, its
+ * record cache cleared, and it is closed and opened again, which is the only way Orient's API has of making it forget
+ * the objects it mapped to records; the storage stays open meanwhile, so the next user starts afresh without the cost
+ * of a first open. A handle that can't be reset is closed.
+ * The pool is controlled by the following persistence properties
+ * <ul>
+ * <li>datanucleus.orient.connectionPool.maxActive : maximum number of handles lent out at once (0 = unbounded)</li>
+ * <li>datanucleus.orient.connectionPool.minIdle : number of idle handles opened when the pool is created, and kept
+ * open however long they are idle</li>
+ * <li>datanucleus.orient.connectionPool.idleTimeout : millisecs after which an idle handle above minIdle is closed,
+ * checked whenever a handle is borrowed or returned</li>
+ * <li>datanucleus.orient.connectionPool.maxWait : millisecs to wait for a handle when the pool is exhausted (-1 = forever)</li>
+ * <li>datanucleus.orient.connectionPool.validateOnBorrow : whether to check that an idle handle is still open before lending it</li>
+ * </ul>
+ */
+public class OrientConnectionPool
+{
+    /** Localiser for messages. */
+    protected static final Localiser LOCALISER_ORIENT = Localiser.getInstance("org.datanucleus.store.orient.Localisation",
+        OrientStoreManager.class.getClassLoader());
+
+    /** Manager for the store that the handles are registered with. */
+    private final OrientStoreManager storeMgr;
+
+    private final String url;
+
+    private final String username;
+
+    private final String password;
+
+    private final int minIdle;
+
+    private final long idleTimeout;
+
+    private final long maxWait;
+
+    private final boolean validateOnBorrow;
+
+    /** Permits for handles that can be lent out, or null when unbounded. */
+    private final Semaphore permits;
+
+    /** Idle handles, most recently returned first. Access is synchronized on the list. */
+    private final LinkedList<IdleHandle> idleHandles = new LinkedList<IdleHandle>();
+
+    private volatile boolean closed = false;
+
+    private final AtomicInteger numActive = new AtomicInteger();
+
+    private final AtomicLong numCreated = new AtomicLong();
+
+    private final AtomicLong numDestroyed = new AtomicLong();
+
+    private final AtomicLong numBorrowed = new AtomicLong();
+
+    private final AtomicLong numValidationFailures = new AtomicLong();
+
+    /**
+     * Idle database handle, with the time at which it was returned to the pool.
+     */
+    private static class IdleHandle
+    {
+        final ODatabaseObjectTx db;
+
+        final long returnTime;
+
+        IdleHandle(ODatabaseObjectTx db, long returnTime)
+        {
+            this.db = db;
+            this.returnTime = returnTime;
+        }
+    }
+
+    /**
+     * Database handle opened by the pool, which can be reset for its next user.
+     */
+    private static class PooledDatabase extends ODatabaseObjectTx
+    {
+        /** Number of times the handle has been reset, so records read before a reset can be told apart. */
+        volatile long lease = 0;
+
+        private final String username;
+
+        private final String password;
+
+        PooledDatabase(String url, String username, String password)
+        {
+            super(url);
+            this.username = username;
+            this.password = password;
+        }
+
+        /**
+         * Method to discard any transaction still open, the cached records and the mapping of user objects to
+         * records, which a rollback only does for records created in the transaction and which Orient only drops when
+         * the database is closed.
+         */
+        void reset()
+        {
+            rollback();
+            getLevel1Cache().clear();
+            close();
+            open(username, password);
+            lease++;
+        }
+    }
+
+    /**
+     * Constructor, taking its settings from the persistence properties of the store. Opens the minimum number of
+     * idle handles straight away.
+     * @param storeMgr Manager for the store
+     */
+    public OrientConnectionPool(OrientStoreManager storeMgr)
+    {
+        this.storeMgr = storeMgr;
+        this.url = storeMgr.getConnectionURL();
+        this.username = storeMgr.getConnectionUserName();
+        this.password = storeMgr.getConnectionPassword();
+
+        PersistenceConfiguration conf = storeMgr.getOMFContext().getPersistenceConfiguration();
+        this.minIdle = conf.getIntProperty("datanucleus.orient.connectionPool.minIdle");
+        this.idleTimeout = conf.getIntProperty("datanucleus.orient.connectionPool.idleTimeout");
+        this.maxWait = conf.getIntProperty("datanucleus.orient.connectionPool.maxWait");
+        this.validateOnBorrow = conf.getBooleanProperty("datanucleus.orient.connectionPool.validateOnBorrow");
+        int maxActive = conf.getIntProperty("datanucleus.orient.connectionPool.maxActive");
+        this.permits = (maxActive > 0 ? new Semaphore(maxActive, true) : null);
+
+        if (NucleusLogger.CONNECTION.isDebugEnabled())
+        {
+            NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.Pool.Created", url, "" + maxActive, "" + minIdle,
+                "" + idleTimeout));
+        }
+
+        ensureMinIdle();
+    }
+
+    /**
+     * Accessor for an open database handle. Reuses an idle handle where one is available, otherwise opens a new one,
+     * waiting for a handle to be returned if the pool is exhausted.
+     * @return The database handle
+     * @throws NucleusDataStoreException if the pool is closed or no handle became available in time
+     */
+    public ODatabaseObjectTx borrowConnection()
+    {
+        if (closed)
+        {
+            throw new NucleusDataStoreException(LOCALISER_ORIENT.msg("Orient.Pool.Closed", url));
+        }
+
+        acquirePermit();
+        try
+        {
+            evictIdleConnections();
+
+            ODatabaseObjectTx db = null;
+            while (db == null)
+            {
+                IdleHandle handle;
+                synchronized (idleHandles)
+                {
+                    handle = idleHandles.poll();
+                }
+                if (handle == null)
+                {
+                    db = openConnection();
+                }
+                else if (validateOnBorrow && handle.db.isClosed())
+                {
+                    numValidationFailures.incrementAndGet();
+                    destroyConnection(handle.db);
+                }
+                else
+                {
+                    db = handle.db;
+                }
+            }
+
+            numActive.incrementAndGet();
+            numBorrowed.incrementAndGet();
+            return db;
+        }
+        catch (RuntimeException re)
+        {
+            releasePermit();
+            throw re;
+        }
+    }
+
+    /**
+     * Method to give a database handle back to the pool, after rolling back anything left in it and clearing its
+     * mapping of user objects to records. Handles that are closed, can't be reset, or are returned after the pool was
+     * closed, are discarded. Any idle handles above the minimum that have passed their idle timeout are closed.
+     * @param db The database handle
+     */
+    public void returnConnection(ODatabaseObjectTx db)
+    {
+        if (db == null)
+        {
+            return;
+        }
+
+        numActive.decrementAndGet();
+        try
+        {
+            if (closed || db.isClosed() || !(db instanceof PooledDatabase))
+            {
+                destroyConnection(db);
+                return;
+            }
+
+            try
+            {
+                ((PooledDatabase) db).reset();
+            }
+            catch (RuntimeException re)
+            {
+                NucleusLogger.CONNECTION.warn(LOCALISER_ORIENT.msg("Orient.Pool.ResetFailed", db.toString(),
+                    re.getMessage()));
+                destroyConnection(db);
+                return;
+            }
+
+            synchronized (idleHandles)
+            {
+                idleHandles.addFirst(new IdleHandle(db, System.currentTimeMillis()));
+            }
+            evictIdleConnections();
+        }
+        finally
+        {
+            releasePermit();
+        }
+    }
+
+    /**
+     * Method to close the idle handles above the minimum that have passed their idle timeout. Called whenever a handle
+     * is borrowed or returned rather than from a thread of its own.
+     */
+    private void evictIdleConnections()
+    {
+        if (idleTimeout <= 0)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<ODatabaseObjectTx> expired = null;
+        synchronized (idleHandles)
+        {
+            while (idleHandles.size() > minIdle && now - idleHandles.getLast().returnTime > idleTimeout)
+            {
+                if (expired == null)
+                {
+                    expired = new ArrayList<ODatabaseObjectTx>();
+                }
+                expired.add(idleHandles.removeLast().db);
+            }
+        }
+
+        if (expired != null)
+        {
+            for (ODatabaseObjectTx expiredDb : expired)
+            {
+                destroyConnection(expiredDb);
+            }
+        }
+    }
+
+    /**
+     * Method to open handles until there are at least the minimum number idle, when the pool is created. A handle that
+     * fails to open is logged and left, since borrowing opens handles as required anyway.
+     */
+    private void ensureMinIdle()
+    {
+        while (!closed)
+        {
+            synchronized (idleHandles)
+            {
+                if (idleHandles.size() >= minIdle)
+                {
+                    return;
+                }
+            }
+
+            ODatabaseObjectTx db;
+            try
+            {
+                db = openConnection();
+            }
+            catch (RuntimeException re)
+            {
+                NucleusLogger.CONNECTION.warn(LOCALISER_ORIENT.msg("Orient.Pool.OpenFailed", url, re.getMessage()));
+                return;
+            }
+            synchronized (idleHandles)
+            {
+                if (!closed)
+                {
+                    idleHandles.addLast(new IdleHandle(db, System.currentTimeMillis()));
+                    continue;
+                }
+            }
+            destroyConnection(db);
+        }
+    }
+
+    /**
+     * Accessor for the lease of a database handle, which changes whenever the handle is given back to the pool. A
+     * record read through a handle is only valid while the handle has the same lease.
+     * @param db The database handle
+     * @return The lease (always 0 for a handle not opened by a pool)
+     */
+    public static long getLease(ODatabaseObjectTx db)
+    {
+        return (db instanceof PooledDatabase ? ((PooledDatabase) db).lease : 0);
+    }
+
+    /**
+     * Method to close the pool. All idle handles are closed now, and handles still lent out are closed when returned.
+     */
+    public void close()
+    {
+        closed = true;
+
+        List<IdleHandle> handles;
+        synchronized (idleHandles)
+        {
+            handles = new ArrayList<IdleHandle>(idleHandles);
+            idleHandles.clear();
+        }
+        Iterator<IdleHandle> iter = handles.iterator();
+        while (iter.hasNext())
+        {
+            destroyConnection(iter.next().db);
+        }
+
+        if (NucleusLogger.CONNECTION.isDebugEnabled())
+        {
+            NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.Pool.Closed", url) + " " + this);
+        }
+    }
+
+    private ODatabaseObjectTx openConnection()
+    {
+        NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.connecting", url, username));
+        ODatabaseObjectTx db = new PooledDatabase(url, username, password);
+        db.open(username, password);
+        NucleusLogger.CONNECTION.info(LOCALISER_ORIENT.msg("Orient.connected", url, username));
+        numCreated.incrementAndGet();
+
+        storeMgr.registerObjectContainer(db);
+        return db;
+    }
+
+    private void destroyConnection(ODatabaseObjectTx db)
+    {
+        storeMgr.deregisterObjectContainer(db);
+        numDestroyed.incrementAndGet();
+        try
+        {
+            if (!db.isClosed())
+            {
+                db.close();
+                if (NucleusLogger.CONNECTION.isDebugEnabled())
+                {
+                    NucleusLogger.CONNECTION.debug(LOCALISER_ORIENT.msg("Orient.closingConnection", db.toString()));
+                }
+            }
+        }
+        catch (RuntimeException re)
+        {
+            NucleusLogger.CONNECTION.warn(LOCALISER_ORIENT.msg("Orient.Pool.CloseFailed", db.toString(), re.getMessage()));
+        }
+    }
+
+    private void acquirePermit()
+    {
+        if (permits == null)
+        {
+            return;
+        }
+
+        try
+        {
+            if (maxWait < 0)
+            {
+                permits.acquire();
+            }
+            else if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+            {
+                throw new NucleusDataStoreException(LOCALISER_ORIENT.msg("Orient.Pool.Exhausted", url, "" + maxWait));
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException(LOCALISER_ORIENT.msg("Orient.Pool.Exhausted", url, "" + maxWait), ie);
+        }
+    }
+
+    private void releasePermit()
+    {
+        if (permits != null)
+        {
+            permits.release();
+        }
+    }
+
+    /**
+     * Accessor for the number of handles currently lent out.
+     * @return Number of active handles
+     */
+    public int getNumActive()
+    {
+        return numActive.get();
+    }
+
+    /**
+     * Accessor for the number of handles currently idle in the pool.
+     * @return Number of idle handles
+     */
+    public int getNumIdle()
+    {
+        synchronized (idleHandles)
+        {
+            return idleHandles.size();
+        }
+    }
+
+    /**
+     * Accessor for the number of handles opened by this pool.
+     * @return Number of handles opened
+     */
+    public long getNumCreated()
+    {
+        return numCreated.get();
+    }
+
+    /**
+     * Accessor for the number of handles closed by this pool.
+     * @return Number of handles closed
+     */
+    public long getNumDestroyed()
+    {
+        return numDestroyed.get();
+    }
+
+    /**
+     * Accessor for the number of times a handle has been lent out.
+     * @return Number of borrows
+     */
+    public long getNumBorrowed()
+    {
+        return numBorrowed.get();
+    }
+
+    /**
+     * Accessor for the number of idle handles that were found closed when about to be lent out.
+     * @return Number of failed validations
+     */
+    public long getNumValidationFailures()
+    {
+        return numValidationFailures.get();
+    }
+
+    public String toString()
+    {
+        return "OrientConnectionPool[url=" + url + ", active=" + getNumActive() + ", idle=" + getNumIdle() + ", created=" +
+            getNumCreated() + ", destroyed=" + getNumDestroyed() + ", borrowed=" + getNumBorrowed() + ", validationFailures=" +
+            getNumValidationFailures() + "]";
+    }
+}
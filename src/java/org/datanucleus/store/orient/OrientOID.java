@@ -0,0 +1,251 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient;
+
+import java.io.Serializable;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.identity.OID;
+import org.datanucleus.util.Localiser;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+
+/**
+ * Datastore identity of an object stored in Orient. Holds just the id of the cluster and the position in the cluster
+ * of the record of the object, so the Orient record id can be created without any lookup, and the (interned) class
+ * name. Equality and hashing use these alone. The key value is "{cluster-id}:{cluster-position}" and the String form
+ * is that key followed by "[OID]{class-name}", as for other OIDs; both are only built when asked for. Registered as
+ * the "orient" datastore identity type, so that with "datanucleus.datastoreIdentityType" set to "orient" DataNucleus
+ * creates these through OIDFactory too.
+ */
+public class OrientOID implements OID, Comparable, Serializable
+{
+    private static final long serialVersionUID = 4129337584936237415L;
+
+    /** Localiser for messages. */
+    protected static final Localiser LOCALISER_ORIENT = Localiser.getInstance("org.datanucleus.store.orient.Localisation",
+        OrientStoreManager.class.getClassLoader());
+
+    /** Separator between the record id and the class name in the String form. */
+    public static final String STRING_DELIMITER = "[OID]";
+
+    private final int clusterId;
+
+    private final long clusterPosition;
+
+    /** Name of the persistable class (interned, so ids of the same class share it). */
+    private final String pcClass;
+
+    /** The key value, only built when first asked for. */
+    private transient String keyValue;
+
+    /**
+     * Constructor.
+     * @param clusterId Id of the cluster holding the record
+     * @param clusterPosition Position of the record in its cluster
+     * @param pcClass Name of the persistable class
+     */
+    public OrientOID(int clusterId, long clusterPosition, String pcClass)
+    {
+        this.clusterId = clusterId;
+        this.clusterPosition = clusterPosition;
+        this.pcClass = pcClass.intern();
+    }
+
+    /**
+     * Constructor taking the class and key value, as used by OIDFactory. The key is the record id, as an ORID or a
+     * String "{cluster-id}:{cluster-position}" (optionally starting with "#"), or another OrientOID.
+     * @param pcClass Name of the persistable class
+     * @param key The key value
+     * @throws NucleusUserException if the key is not a record id
+     */
+    public OrientOID(String pcClass, Object key)
+    {
+        this.pcClass = pcClass.intern();
+        if (key instanceof OrientOID)
+        {
+            this.clusterId = ((OrientOID) key).clusterId;
+            this.clusterPosition = ((OrientOID) key).clusterPosition;
+        }
+        else if (key instanceof ORID)
+        {
+            this.clusterId = ((ORID) key).getClusterId();
+            this.clusterPosition = ((ORID) key).getClusterPosition();
+        }
+        else
+        {
+            String keyStr = (key != null ? key.toString() : "");
+            if (keyStr.startsWith("#"))
+            {
+                keyStr = keyStr.substring(1);
+            }
+            int colon = keyStr.indexOf(':');
+            if (colon <= 0)
+            {
+                throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.OID.KeyInvalid", key, pcClass));
+            }
+            try
+            {
+                this.clusterId = Integer.parseInt(keyStr.substring(0, colon));
+                this.clusterPosition = Long.parseLong(keyStr.substring(colon + 1));
+            }
+            catch (NumberFormatException nfe)
+            {
+                throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.OID.KeyInvalid", key, pcClass), nfe);
+            }
+        }
+    }
+
+    /**
+     * Constructor taking the String form of the identity, as output by toString().
+     * @param str The String form
+     * @throws NucleusUserException if the String is not of the right form
+     */
+    public OrientOID(String str)
+    {
+        int delimiter = str.indexOf(STRING_DELIMITER);
+        int colon = (delimiter > 0 ? str.lastIndexOf(':', delimiter) : -1);
+        if (colon <= 0)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.OID.Invalid", str));
+        }
+
+        try
+        {
+            this.clusterId = Integer.parseInt(str.substring(0, colon));
+            this.clusterPosition = Long.parseLong(str.substring(colon + 1, delimiter));
+        }
+        catch (NumberFormatException nfe)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.OID.Invalid", str), nfe);
+        }
+        this.pcClass = str.substring(delimiter + STRING_DELIMITER.length()).intern();
+    }
+
+    /**
+     * Convenience method to return whether a String is in the form output by toString().
+     * @param str The String
+     * @return Whether it is the String form of an OrientOID
+     */
+    public static boolean isOrientOIDString(String str)
+    {
+        int delimiter = str.indexOf(STRING_DELIMITER);
+        return delimiter > 0 && str.lastIndexOf(':', delimiter) > 0;
+    }
+
+    public int getClusterId()
+    {
+        return clusterId;
+    }
+
+    public long getClusterPosition()
+    {
+        return clusterPosition;
+    }
+
+    /**
+     * Accessor for the Orient record id of the object.
+     * @return The record id
+     */
+    public ORecordId getRecordId()
+    {
+        return new ORecordId(clusterId, clusterPosition);
+    }
+
+    /**
+     * Accessor for the key value, the record id "{cluster-id}:{cluster-position}". Built on the first call, and kept
+     * for later calls.
+     * @return The key value
+     */
+    public Object getKeyValue()
+    {
+        String key = keyValue;
+        if (key == null)
+        {
+            key = clusterId + ":" + clusterPosition;
+            keyValue = key;
+        }
+        return key;
+    }
+
+    public String getPcClass()
+    {
+        return pcClass;
+    }
+
+    public boolean equals(Object obj)
+    {
+        if (obj == this)
+        {
+            return true;
+        }
+        if (!(obj instanceof OrientOID))
+        {
+            return false;
+        }
+        OrientOID other = (OrientOID) obj;
+        return clusterPosition == other.clusterPosition && clusterId == other.clusterId &&
+            pcClass.equals(other.pcClass);
+    }
+
+    public int hashCode()
+    {
+        return 31 * clusterId + (int) (clusterPosition ^ (clusterPosition >>> 32));
+    }
+
+    /**
+     * Method to compare with another OID. OrientOIDs are ordered by their record id (then class name), so that
+     * records are read in the order they are stored; other OIDs by their String form.
+     * @param obj The other OID
+     * @return Negative, zero or positive as this is less than, equal to or greater than the other OID
+     * @throws ClassCastException if the object is not an OID
+     */
+    public int compareTo(Object obj)
+    {
+        if (!(obj instanceof OrientOID))
+        {
+            return toString().compareTo(((OID) obj).toString());
+        }
+
+        OrientOID other = (OrientOID) obj;
+        if (clusterId != other.clusterId)
+        {
+            return (clusterId < other.clusterId ? -1 : 1);
+        }
+        if (clusterPosition != other.clusterPosition)
+        {
+            return (clusterPosition < other.clusterPosition ? -1 : 1);
+        }
+        return pcClass.compareTo(other.pcClass);
+    }
+
+    public String toString()
+    {
+        return getKeyValue() + STRING_DELIMITER + pcClass;
+    }
+
+    /**
+     * Method to replace a deserialised identity by one sharing the interned class name.
+     * @return The identity to use
+     */
+    private Object readResolve()
+    {
+        return new OrientOID(clusterId, clusterPosition, pcClass);
+    }
+}
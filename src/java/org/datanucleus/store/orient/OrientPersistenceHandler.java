@@ -18,17 +18,19 @@ Contributors:
 package org.datanucleus.store.orient;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import javax.jdo.spi.PersistenceCapable;
+import java.util.Map;
 
 import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.exceptions.NucleusOptimisticException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.identity.OID;
-import org.datanucleus.identity.OIDFactory;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.IdentityType;
 import org.datanucleus.metadata.VersionMetaData;
@@ -44,11 +46,15 @@ import org.datanucleus.store.fieldmanager.PersistFieldManager;
 import org.datanucleus.store.orient.fieldmanager.ActivationFieldManager;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
-import org.datanucleus.util.StringUtils;
 
 import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
 import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.intent.OIntentMassiveInsert;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OCommandSQL;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 /**
  * Persistence handler for persisting to Orient datastores.
@@ -62,6 +68,19 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
     /** Manager for the store. */
     protected final OrientStoreManager storeMgr;
 
+    /** Maximum number of records loaded by one query in findObjects. */
+    private static final int FIND_BATCH_SIZE = 500;
+
+    /**
+     * When optimistic version checks are made; "immediate" (when each object is flushed), "commit" (the versions
+     * written by the transaction are checked together, with one query per batch of records, before it commits) or
+     * "datastore" (left to Orient, which checks the version of each record as it is written).
+     */
+    private final String versionCheck;
+
+    /** Whether dependent objects are deleted with one Orient DELETE command per class rather than one by one. */
+    private final boolean deleteDependentsInDatastore;
+
     /**
      * Thread-specific state information (instances of {@link OperationInfo}) for inserting. Allows us to detect the
      * primary object to be inserted, so we can call NeoDatis with that and not for any others.
@@ -74,6 +93,18 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
         }
     };
 
+    /**
+     * Thread-specific state information (instances of {@link OperationInfo}) for deleting. Allows us to detect the
+     * primary object to be deleted, and collect the dependent objects to be deleted along with it.
+     */
+    private ThreadLocal deleteInfoThreadLocal = new ThreadLocal()
+    {
+        protected Object initialValue()
+        {
+            return new OperationInfo();
+        }
+    };
+
     private static class OperationInfo
     {
         /** List of StateManagers to perform the operation on. */
@@ -87,6 +118,11 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
     public OrientPersistenceHandler(StoreManager storeMgr)
     {
         this.storeMgr = (OrientStoreManager) storeMgr;
+        String check = storeMgr.getOMFContext().getPersistenceConfiguration().getStringProperty(
+            "datanucleus.orient.optimisticVersionCheck");
+        this.versionCheck = (check != null ? check.toLowerCase() : OrientPropertyValidator.VERSION_CHECK_IMMEDIATE);
+        this.deleteDependentsInDatastore = storeMgr.getOMFContext().getPersistenceConfiguration().getBooleanProperty(
+            "datanucleus.orient.deleteDependentsInDatastore");
     }
 
     /**
@@ -137,44 +173,102 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
                 storeMgr.getRuntimeManager().incrementInsertCount();
             }
 
-            ObjectProvider objSM = sm.getExecutionContext().findObjectProvider(sm.getObject());
-            if (objSM != null)
+            assignIdentityAndVersion(sm, connection);
+        }
+        finally
+        {
+            mconn.release();
+        }
+
+        if (primaryObject)
+        {
+            Iterator iter = insertInfo.smList.iterator();
+            while (iter.hasNext())
             {
-                AbstractClassMetaData cmd = objSM.getClassMetaData();
-                if (cmd.getIdentityType() == IdentityType.DATASTORE)
-                {
+                ObjectProvider objSM = (ObjectProvider) iter.next();
+                objSM.replaceAllLoadedSCOFieldsWithWrappers();
+            }
 
-                    ORID identity = connection.getRecordByUserObject(sm.getObject(), false).getIdentity();
-                    String clusterName = sm.getObject().getClass().getName();
-                    long oid = identity.getClusterPosition();
-                    if (oid > -1)
-                    {
-                        objSM.setPostStoreNewObjectId(OIDFactory.getInstance(storeMgr.getOMFContext(), clusterName, oid));
-                    }
-                    else
-                    {
-                        NucleusLogger.DATASTORE.error(LOCALISER.msg("Orient.Insert.ObjectPersistFailed", sm.toPrintableID()));
-                    }
-                }
+            // Clean out the OperationInfo for inserts on this thread
+            insertInfo.smList.clear();
+            insertInfo.smList = null;
+            insertInfoThreadLocal.remove();
+        }
+    }
+
+    /**
+     * Inserts a group of persistent objects into the database. The objects are saved one after another under Orient's
+     * massive-insert intent, which saves the intent being declared per object, and their identities and versions are
+     * assigned once all have been saved. Orient has no call saving several objects at once, and the objects have to
+     * be saved in the transaction of the connection, so there is nothing more to batch.
+     * @param sms The state managers of the objects to be inserted.
+     * @throws NucleusDataStoreException when an error occurs in the datastore communication
+     */
+    public void insertObjects(ObjectProvider... sms)
+    {
+        if (sms.length == 0)
+        {
+            return;
+        }
+        else if (sms.length == 1)
+        {
+            insertObject(sms[0]);
+            return;
+        }
 
-                VersionMetaData vermd = cmd.getVersionMetaData();
-                if (vermd != null && vermd.getVersionStrategy() == VersionStrategy.VERSION_NUMBER)
+        // All objects of the group are primary objects, and any reachable objects go through insertObject
+        OperationInfo insertInfo = (OperationInfo) insertInfoThreadLocal.get();
+        boolean primaryObject = false;
+        if (insertInfo.smList == null)
+        {
+            primaryObject = true;
+            insertInfo.smList = new ArrayList();
+        }
+
+        for (int i = 0; i < sms.length; i++)
+        {
+            ObjectProvider sm = sms[i];
+            storeMgr.assertReadOnlyForUpdateOfObject(sm);
+            insertInfo.smList.add(sm);
+
+            String className = sm.getObject().getClass().getName();
+            if (!storeMgr.managesClass(className))
+            {
+                storeMgr.addClass(className, sm.getExecutionContext().getClassLoaderResolver());
+            }
+            sm.provideFields(sm.getClassMetaData().getAllMemberPositions(), new PersistFieldManager(sm, false));
+        }
+
+        ManagedConnection mconn = storeMgr.getConnection(sms[0].getExecutionContext());
+        ODatabaseObjectTx connection = (ODatabaseObjectTx) mconn.getConnection();
+        try
+        {
+            long startTime = System.currentTimeMillis();
+            connection.declareIntent(new OIntentMassiveInsert());
+            try
+            {
+                for (int i = 0; i < sms.length; i++)
                 {
-                    // versioned object so update its version
-                    long version = connection.getRecordByUserObject(sm.getObject(), false).getVersion();
-                    objSM.setTransactionalVersion(Long.valueOf(version));
-                    NucleusLogger.DATASTORE.debug(LOCALISER.msg("Orient.Insert.ObjectPersistedWithVersion", sm.toPrintableID(),
-                        objSM.getInternalObjectId(), "" + version));
+                    connection.save(sms[i].getObject());
                 }
-                else
+            }
+            finally
+            {
+                connection.declareIntent(null);
+            }
+            for (int i = 0; i < sms.length; i++)
+            {
+                assignIdentityAndVersion(sms[i], connection);
+                if (storeMgr.getRuntimeManager() != null)
                 {
-                    if (NucleusLogger.DATASTORE.isDebugEnabled())
-                    {
-                        NucleusLogger.DATASTORE.debug(LOCALISER.msg("Orient.Insert.ObjectPersisted", sm.toPrintableID(),
-                            objSM.getInternalObjectId()));
-                    }
+                    storeMgr.getRuntimeManager().incrementInsertCount();
                 }
             }
+            if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER.msg("Orient.Insert.Batch", "" + sms.length,
+                    "" + (System.currentTimeMillis() - startTime)));
+            }
         }
         finally
         {
@@ -197,6 +291,56 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
         }
     }
 
+    /**
+     * Method to give a newly saved object its datastore identity and version, reading both from a single lookup of
+     * its Orient record.
+     * @param sm StateManager of the saved object
+     * @param connection The Orient database it was saved with
+     */
+    private void assignIdentityAndVersion(ObjectProvider sm, ODatabaseObjectTx connection)
+    {
+        ObjectProvider objSM = sm.getExecutionContext().findObjectProvider(sm.getObject());
+        if (objSM == null)
+        {
+            return;
+        }
+
+        ODocument record = connection.getRecordByUserObject(sm.getObject(), false);
+        OrientUtils.setRecordForObject(objSM, connection, record, storeMgr);
+        AbstractClassMetaData cmd = objSM.getClassMetaData();
+        if (cmd.getIdentityType() == IdentityType.DATASTORE)
+        {
+            ORID identity = record.getIdentity();
+            if (identity.getClusterPosition() > -1)
+            {
+                objSM.setPostStoreNewObjectId(new OrientOID(identity.getClusterId(), identity.getClusterPosition(),
+                    sm.getObject().getClass().getName()));
+            }
+            else
+            {
+                NucleusLogger.DATASTORE.error(LOCALISER.msg("Orient.Insert.ObjectPersistFailed", sm.toPrintableID()));
+            }
+        }
+
+        VersionMetaData vermd = cmd.getVersionMetaData();
+        if (vermd != null && vermd.getVersionStrategy() == VersionStrategy.VERSION_NUMBER)
+        {
+            // versioned object so update its version
+            long version = record.getVersion();
+            objSM.setTransactionalVersion(Long.valueOf(version));
+            NucleusLogger.DATASTORE.debug(LOCALISER.msg("Orient.Insert.ObjectPersistedWithVersion", sm.toPrintableID(),
+                objSM.getInternalObjectId(), "" + version));
+        }
+        else
+        {
+            if (NucleusLogger.DATASTORE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE.debug(LOCALISER.msg("Orient.Insert.ObjectPersisted", sm.toPrintableID(),
+                    objSM.getInternalObjectId()));
+            }
+        }
+    }
+
     /**
      * Updates a persistent object in the database.
      * @param sm The state manager of the object to be updated.
@@ -216,16 +360,9 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
         ODatabaseObjectTx connection = (ODatabaseObjectTx) mconn.getConnection();
         try
         {
+            ODocument record = OrientUtils.getRecordForObject(sm, connection, storeMgr);
             VersionMetaData vermd = sm.getClassMetaData().getVersionMetaData();
-            if (sm.getExecutionContext().getTransaction().getOptimistic() && vermd != null)
-            {
-                // Optimistic transaction so perform version check before any update
-                long datastoreVersion = connection.getRecordByUserObject(sm.getObject(), false).getVersion();
-                if (datastoreVersion > 0)
-                {
-                    storeMgr.performVersionCheck(sm, Long.valueOf(datastoreVersion), vermd);
-                }
-            }
+            checkVersion(sm, record, vermd);
 
             long startTime = System.currentTimeMillis();
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
@@ -244,34 +381,33 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
                     fieldStr.toString()));
             }
 
-            PersistenceCapable pc = (PersistenceCapable) sm.getObject();
             int[] dirtyFieldNumbers = sm.getDirtyFieldNumbers();
-            if (dirtyFieldNumbers != null && dirtyFieldNumbers.length > 0)
+            if (dirtyFieldNumbers == null || dirtyFieldNumbers.length == 0)
+            {
+                dirtyFieldNumbers = fieldNumbers;
+            }
+
+            // Do the update in Orient. The object is already attached to its record, so no reload is needed
+            if (record != null && OrientUtils.isStorableInRecord(sm.getClassMetaData(), dirtyFieldNumbers))
             {
-                Object oid = pc.jdoGetObjectId();
-                pc = (PersistenceCapable) findObject(sm.getExecutionContext(), oid);
-                ObjectProvider newSm = sm.getExecutionContext().findObjectProvider(pc);
-                for (int fieldNum : dirtyFieldNumbers)
+                // Only basic fields have changed, so write just those fields onto the record
+                AbstractClassMetaData cmd = sm.getClassMetaData();
+                for (int i = 0; i < dirtyFieldNumbers.length; i++)
                 {
-                    Object fieldVal = sm.provideField(fieldNum);
-                    newSm.replaceField(fieldNum, fieldVal);
+                    String fieldName = cmd.getMetaDataForManagedMemberAtAbsolutePosition(dirtyFieldNumbers[i]).getName();
+                    record.field(fieldName, sm.provideField(dirtyFieldNumbers[i]));
                 }
-                // sm.replaceManagedPC(pc); //TODO should it be done...?
-
+                record.save();
             }
             else
             {
-                // Just needs updating
-                if (NucleusLogger.DATASTORE.isDebugEnabled())
+                // Relation or container fields have changed, so let Orient serialise the whole object
+                connection.save(sm.getObject());
+                if (record == null)
                 {
-                    NucleusLogger.DATASTORE.debug(LOCALISER.msg("Orient.Object.Refreshing", StringUtils.toJVMIDString(pc)));
+                    record = OrientUtils.getRecordForObject(sm, connection, storeMgr);
                 }
-                Object oid = pc.jdoGetObjectId();
-                pc = (PersistenceCapable) findObject(sm.getExecutionContext(), oid);
             }
-
-            // Do the update in Orient
-            connection.save(pc);
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER.msg("Orient.ExecutionTime", (System.currentTimeMillis() - startTime)));
@@ -284,13 +420,24 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
             if (vermd != null && vermd.getVersionStrategy() == VersionStrategy.VERSION_NUMBER)
             {
                 // versioned object so update its version now that we've persisted the changes
-                long version = connection.getRecordByUserObject(sm.getObject(), false).getVersion();
+                long version = record.getVersion();
                 sm.setTransactionalVersion(Long.valueOf(version));
+                if (isVersionCheckedOnCommit(sm, mconn) && record.getIdentity().getClusterPosition() > -1)
+                {
+                    // The record has to still be at this version when the transaction commits
+                    ((ConnectionFactoryImpl.ManagedConnectionImpl) mconn).expectVersion(sm, record.getIdentity(),
+                        version);
+                }
             }
 
             // Wrap any unwrapped SCO fields so any subsequent changes are picked up
             // sm.replaceAllLoadedSCOFieldsWithWrappers();
         }
+        catch (OConcurrentModificationException cme)
+        {
+            throw new NucleusOptimisticException(LOCALISER.msg("Orient.Version.ConcurrentModification", sm.toPrintableID(),
+                sm.getInternalObjectId()), sm.getObject());
+        }
         finally
         {
             mconn.release();
@@ -298,7 +445,50 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
     }
 
     /**
-     * Deletes a persistent object from the database.
+     * Method to perform the optimistic version check for an object about to be updated or deleted, when in an
+     * optimistic transaction. With "datanucleus.orient.optimisticVersionCheck" of "immediate" the check is made now.
+     * Otherwise nothing is done here: Orient refuses to write a record that has changed since it was read, and with
+     * "commit" the version written by the update is checked again when the transaction commits.
+     * @param sm StateManager of the object
+     * @param record Orient record of the object
+     * @param vermd Version metadata of the class (if any)
+     * @throws NucleusOptimisticException thrown if the check is made now and fails
+     */
+    private void checkVersion(ObjectProvider sm, ODocument record, VersionMetaData vermd)
+    {
+        if (vermd == null || record == null || !sm.getExecutionContext().getTransaction().getOptimistic())
+        {
+            return;
+        }
+
+        if (OrientPropertyValidator.VERSION_CHECK_IMMEDIATE.equals(versionCheck))
+        {
+            long datastoreVersion = record.getVersion();
+            if (datastoreVersion > 0)
+            {
+                storeMgr.performVersionCheck(sm, Long.valueOf(datastoreVersion), vermd);
+            }
+        }
+    }
+
+    /**
+     * Convenience method to return whether the versions written for an object are to be checked when its transaction
+     * commits, rather than as each object is flushed.
+     * @param sm StateManager of the object
+     * @param mconn The connection the object is written through
+     * @return Whether the version is checked on commit
+     */
+    private boolean isVersionCheckedOnCommit(ObjectProvider sm, ManagedConnection mconn)
+    {
+        return OrientPropertyValidator.VERSION_CHECK_COMMIT.equals(versionCheck) &&
+            mconn instanceof ConnectionFactoryImpl.ManagedConnectionImpl &&
+            sm.getExecutionContext().getTransaction().getOptimistic();
+    }
+
+    /**
+     * Deletes a persistent object from the database. Only the dependent fields of the object are loaded, to find the
+     * objects to be deleted along with it. Those dependent objects are collected while the primary object is being
+     * deleted, and are deleted together after it.
      * @param sm The state manager of the object to be deleted.
      * @throws NucleusDataStoreException when an error occurs in the datastore communication
      * @throws NucleusOptimisticException thrown if version checking fails on an optimistic transaction for this object
@@ -308,36 +498,60 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
         // Check if read-only so update not permitted
         storeMgr.assertReadOnlyForUpdateOfObject(sm);
 
+        // Get the DeleteInfo for this thread so we know if this is the primary object or a dependent
+        OperationInfo deleteInfo = (OperationInfo) deleteInfoThreadLocal.get();
+        boolean primaryObject = false;
+        if (deleteInfo.smList == null)
+        {
+            // Primary object
+            primaryObject = true;
+            deleteInfo.smList = new ArrayList();
+        }
+
         ManagedConnection mconn = storeMgr.getConnection(sm.getExecutionContext());
         try
         {
             ODatabaseObjectTx connection = (ODatabaseObjectTx) mconn.getConnection();
             VersionMetaData vermd = sm.getClassMetaData().getVersionMetaData();
-            if (sm.getExecutionContext().getTransaction().getOptimistic() && vermd != null)
+            if (vermd != null)
             {
-                // Optimistic transaction so perform version check before any delete
-                long datastoreVersion = connection.getRecordByUserObject(sm.getObject(), false).getVersion();
-                if (datastoreVersion > 0)
-                {
-                    storeMgr.performVersionCheck(sm, Long.valueOf(datastoreVersion), vermd);
-                }
+                checkVersion(sm, OrientUtils.getRecordForObject(sm, connection, storeMgr), vermd);
             }
 
-            // Load any unloaded fields so that DeleteFieldManager has all field values to work with
-            sm.loadUnloadedFields();
+            // Load just the dependent fields, since DeleteFieldManager does nothing with the others
+            int[] dependentFieldNumbers = OrientUtils.getDependentMemberPositions(sm.getClassMetaData());
+            for (int i = 0; i < dependentFieldNumbers.length; i++)
+            {
+                sm.loadField(dependentFieldNumbers[i]);
+            }
 
             // Delete all reachable PC objects (due to dependent-field). Updates the StateManagers to be in deleted
-            // state
-            sm.provideFields(sm.getClassMetaData().getAllMemberPositions(), new DeleteFieldManager(sm));
+            // state, and comes back here for each of them
+            if (dependentFieldNumbers.length > 0)
+            {
+                sm.provideFields(dependentFieldNumbers, new DeleteFieldManager(sm));
+            }
+
+            if (!primaryObject)
+            {
+                // Dependent object, so leave it to be deleted with the primary object
+                deleteInfo.smList.add(sm);
+                return;
+            }
 
-            // This delete is for the root object so just persist to Orient and it will delete all dependent
-            // objects for us
             long startTime = System.currentTimeMillis();
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER.msg("Orient.Delete.Start", sm.toPrintableID(), sm.getInternalObjectId()));
             }
+            forgetVersion(mconn, sm, connection);
             connection.delete(sm.getObject());
+            OrientUtils.clearRecordForObject(sm);
+            for (int i = 0; i < deleteInfo.smList.size(); i++)
+            {
+                forgetVersion(mconn, (ObjectProvider) deleteInfo.smList.get(i), connection);
+            }
+            deleteDependents(connection, deleteInfo.smList);
             if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
             {
                 NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER.msg("Orient.ExecutionTime", (System.currentTimeMillis() - startTime)));
@@ -346,11 +560,115 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
             {
                 storeMgr.getRuntimeManager().incrementDeleteCount();
             }
-
+        }
+        catch (OConcurrentModificationException cme)
+        {
+            throw new NucleusOptimisticException(LOCALISER.msg("Orient.Version.ConcurrentModification", sm.toPrintableID(),
+                sm.getInternalObjectId()), sm.getObject());
         }
         finally
         {
             mconn.release();
+
+            if (primaryObject)
+            {
+                // Clean out the OperationInfo for deletes on this thread
+                deleteInfo.smList.clear();
+                deleteInfo.smList = null;
+                deleteInfoThreadLocal.remove();
+            }
+        }
+    }
+
+    /**
+     * Method to stop checking on commit the version written for an object that is being deleted.
+     * @param mconn The connection
+     * @param sm StateManager of the object
+     * @param connection The Orient database
+     */
+    private void forgetVersion(ManagedConnection mconn, ObjectProvider sm, ODatabaseObjectTx connection)
+    {
+        if (sm.getClassMetaData().getVersionMetaData() != null && isVersionCheckedOnCommit(sm, mconn))
+        {
+            ODocument record = OrientUtils.getRecordForObject(sm, connection, storeMgr);
+            if (record != null)
+            {
+                ((ConnectionFactoryImpl.ManagedConnectionImpl) mconn).forgetVersion(record.getIdentity());
+            }
+        }
+    }
+
+    /**
+     * Method to delete the dependent objects collected while deleting a primary object. With
+     * "datanucleus.orient.deleteDependentsInDatastore" the records are deleted by id with one Orient DELETE command
+     * per class, otherwise each object is deleted through the object database.
+     * @param connection The Orient database
+     * @param sms StateManagers of the dependent objects
+     */
+    private void deleteDependents(ODatabaseObjectTx connection, List sms)
+    {
+        if (sms.isEmpty())
+        {
+            return;
+        }
+
+        if (deleteDependentsInDatastore)
+        {
+            // Group the record ids by Orient class
+            Map<String, StringBuffer> ridsByClass = new LinkedHashMap<String, StringBuffer>();
+            for (int i = 0; i < sms.size(); i++)
+            {
+                ObjectProvider sm = (ObjectProvider) sms.get(i);
+                ODocument record = OrientUtils.getRecordForObject(sm, connection, storeMgr);
+                if (record == null || record.getIdentity().getClusterPosition() < 0)
+                {
+                    // Not yet in the datastore (persisted in this transaction), so only the object database has it
+                    connection.delete(sm.getObject());
+                    continue;
+                }
+
+                String className = sm.getObject().getClass().getSimpleName();
+                StringBuffer rids = ridsByClass.get(className);
+                if (rids == null)
+                {
+                    rids = new StringBuffer();
+                    ridsByClass.put(className, rids);
+                }
+                else
+                {
+                    rids.append(", ");
+                }
+                ORID rid = record.getIdentity();
+                rids.append('#').append(rid.getClusterId()).append(':').append(rid.getClusterPosition());
+            }
+
+            Iterator<Map.Entry<String, StringBuffer>> iter = ridsByClass.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry<String, StringBuffer> entry = iter.next();
+                String sql = "delete from " + entry.getKey() + " where @rid in [" + entry.getValue() + "]";
+                if (NucleusLogger.DATASTORE_PERSIST.isDebugEnabled())
+                {
+                    NucleusLogger.DATASTORE_PERSIST.debug(LOCALISER.msg("Orient.Delete.Dependents", sql));
+                }
+                connection.command(new OCommandSQL(sql)).execute();
+            }
+        }
+        else
+        {
+            for (int i = 0; i < sms.size(); i++)
+            {
+                connection.delete(((ObjectProvider) sms.get(i)).getObject());
+            }
+        }
+
+        for (int i = 0; i < sms.size(); i++)
+        {
+            OrientUtils.clearRecordForObject((ObjectProvider) sms.get(i));
+            if (storeMgr.getRuntimeManager() != null)
+            {
+                storeMgr.getRuntimeManager().incrementDeleteCount();
+            }
         }
     }
 
@@ -398,7 +716,7 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
             if (vermd != null && vermd.getVersionStrategy() == VersionStrategy.VERSION_NUMBER)
             {
                 // Object needs versioning so store its current datastore version in the StateManager
-                long version = connection.getRecordByUserObject(sm.getObject(), false).getVersion();
+                long version = OrientUtils.getRecordForObject(sm, connection, storeMgr).getVersion();
                 sm.setTransactionalVersion(Long.valueOf(version));
             }
 
@@ -433,57 +751,225 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
         {
             ODatabaseObjectTx cont = (ODatabaseObjectTx) mconn.getConnection();
 
-            if (id instanceof String)
+            ORecordId orid = getRecordIdForObjectId(cont, id);
+            pc = cont.load(orid);
+            if (pc == null)
+            {
+                return null;
+            }
+            if (ec.findObjectProvider(pc) == null)
             {
-                String[] splitted = ((String) id).split("\\[OID\\]");// TODO CONSTANT!!!
-                long recordId = Long.parseLong(splitted[0]);
-                String className = splitted[1];
-                String[] classSplitted = className.split("\\.");
-                String clusterName = classSplitted[classSplitted.length - 1];
-                int clusterId = cont.getClusterIdByName(clusterName.toLowerCase());
-                ORecordId orid = new ORecordId(clusterId, recordId);
+                StateManagerFactory.newStateManagerForHollowPreConstructed(ec, getOrientOID(id, orid, pc), pc);
+            }
+        }
+        finally
+        {
+            mconn.release();
+        }
+        return pc;
+    }
 
-                pc = cont.load(orid);
-                if (pc == null)
+    /**
+     * Accessor for (at least) hollow persistable objects matching the given ids. The ids are grouped by the Orient
+     * cluster of their records, and the records of each cluster are loaded with a single query (of up to
+     * FIND_BATCH_SIZE records). Orient SQL only sees what is stored, so objects that are new, changed or deleted in
+     * the active transaction are loaded one by one instead, which takes the transaction into account.
+     * @param ec the ExecutionContext which will manage the objects
+     * @param ids the ids of the objects in question
+     * @return the persistable objects, in the order of the ids, with null for any id whose record doesn't exist
+     */
+    public Object[] findObjects(ExecutionContext ec, Object[] ids)
+    {
+        Object[] pcs = new Object[ids.length];
+
+        ManagedConnection mconn = storeMgr.getConnection(ec);
+        try
+        {
+            ODatabaseObjectTx cont = (ODatabaseObjectTx) mconn.getConnection();
+            boolean txActive = ec.getTransaction().isActive();
+
+            // Group the positions of the ids by cluster
+            Map<Integer, List<Integer>> idPositionsByCluster = new HashMap<Integer, List<Integer>>();
+            ORecordId[] orids = new ORecordId[ids.length];
+            for (int i = 0; i < ids.length; i++)
+            {
+                orids[i] = getRecordIdForObjectId(cont, ids[i]);
+                if (txActive && isChangedInTransaction(ec, ids[i]))
                 {
-                    return null;
+                    pcs[i] = cont.load(orids[i]);
+                    continue;
                 }
-                if (ec.findObjectProvider(pc) == null)
+                Integer clusterId = Integer.valueOf(orids[i].getClusterId());
+                List<Integer> idPositions = idPositionsByCluster.get(clusterId);
+                if (idPositions == null)
                 {
-                    StateManagerFactory.newStateManagerForHollowPreConstructed(ec, id, pc);
+                    idPositions = new ArrayList<Integer>();
+                    idPositionsByCluster.put(clusterId, idPositions);
                 }
+                idPositions.add(Integer.valueOf(i));
             }
-            else if (id instanceof OID)
+
+            long startTime = System.currentTimeMillis();
+            Iterator<List<Integer>> clusterIter = idPositionsByCluster.values().iterator();
+            while (clusterIter.hasNext())
             {
-                OID oid = (OID) id;
-                long recordId = (Long) oid.getKeyValue();
-                String className = oid.getPcClass();
-                String[] classSplitted = className.split("\\.");
-                String clusterName = classSplitted[classSplitted.length - 1];
-                int clusterId = cont.getClusterIdByName(clusterName);
-                ORecordId orid = new ORecordId(clusterId, recordId);
+                List<Integer> idPositions = clusterIter.next();
+                for (int batchStart = 0; batchStart < idPositions.size(); batchStart += FIND_BATCH_SIZE)
+                {
+                    List<Integer> batch = idPositions.subList(batchStart,
+                        Math.min(batchStart + FIND_BATCH_SIZE, idPositions.size()));
+                    loadObjects(cont, orids, batch, pcs);
+                }
+            }
+            if (NucleusLogger.DATASTORE_RETRIEVE.isDebugEnabled())
+            {
+                NucleusLogger.DATASTORE_RETRIEVE.debug(LOCALISER.msg("Orient.Find.Batch", "" + ids.length,
+                    "" + idPositionsByCluster.size(), "" + (System.currentTimeMillis() - startTime)));
+            }
+
+            // Give StateManagers to all loaded objects that don't have one yet
+            for (int i = 0; i < pcs.length; i++)
+            {
+                if (pcs[i] != null && ec.findObjectProvider(pcs[i]) == null)
+                {
+                    StateManagerFactory.newStateManagerForHollowPreConstructed(ec, getOrientOID(ids[i], orids[i], pcs[i]),
+                        pcs[i]);
+                }
+            }
+        }
+        finally
+        {
+            mconn.release();
+        }
+        return pcs;
+    }
+
+    /**
+     * Convenience method to return whether the object with an id is new, changed or deleted in the active
+     * transaction, so its record in the datastore (if any) isn't what the transaction sees.
+     * @param ec execution context
+     * @param id The identity
+     * @return Whether the object has changed in the transaction
+     */
+    private boolean isChangedInTransaction(ExecutionContext ec, Object id)
+    {
+        Object pc = ec.getObjectFromCache(id);
+        if (pc == null)
+        {
+            return false;
+        }
+        ApiAdapter api = ec.getApiAdapter();
+        return api.isNew(pc) || api.isDirty(pc) || api.isDeleted(pc);
+    }
 
-                pc = cont.load(orid);
-                if (pc == null)
+    /**
+     * Method to load the records for a batch of ids, all in the same cluster, with one query.
+     * @param cont The Orient database
+     * @param orids Record ids for all requested ids
+     * @param idPositions Positions (in orids) of the ids to load
+     * @param pcs Array to put the loaded objects into, at the position of their id
+     */
+    private void loadObjects(ODatabaseObjectTx cont, ORecordId[] orids, List<Integer> idPositions, Object[] pcs)
+    {
+        Map<Long, List<Integer>> idPositionsByClusterPosition = new HashMap<Long, List<Integer>>();
+        StringBuffer sql = new StringBuffer("select from [");
+        Iterator<Integer> iter = idPositions.iterator();
+        while (iter.hasNext())
+        {
+            Integer idPosition = iter.next();
+            ORecordId orid = orids[idPosition.intValue()];
+            Long clusterPosition = Long.valueOf(orid.getClusterPosition());
+            List<Integer> samePosition = idPositionsByClusterPosition.get(clusterPosition);
+            if (samePosition == null)
+            {
+                samePosition = new ArrayList<Integer>(1);
+                idPositionsByClusterPosition.put(clusterPosition, samePosition);
+                if (idPositionsByClusterPosition.size() > 1)
                 {
-                    return null;
+                    sql.append(", ");
                 }
-                if (ec.findObjectProvider(pc) == null)
+                sql.append('#').append(orid.getClusterId()).append(':').append(orid.getClusterPosition());
+            }
+            samePosition.add(idPosition);
+        }
+        sql.append("]");
+
+        List results = cont.query(new OSQLSynchQuery<Object>(sql.toString()));
+        Iterator resultIter = results.iterator();
+        while (resultIter.hasNext())
+        {
+            Object pc = resultIter.next();
+            long clusterPosition = cont.getRecordByUserObject(pc, false).getIdentity().getClusterPosition();
+            List<Integer> samePosition = idPositionsByClusterPosition.get(Long.valueOf(clusterPosition));
+            if (samePosition != null)
+            {
+                for (int i = 0; i < samePosition.size(); i++)
                 {
-                    StateManagerFactory.newStateManagerForHollowPreConstructed(ec, id, pc);
+                    pcs[samePosition.get(i).intValue()] = pc;
                 }
             }
-            else
+        }
+    }
+
+    /**
+     * Convenience method to convert a DataNucleus identity (OID or its String form) into the Orient record id. An
+     * OrientOID carries its record id; other OIDs only have the cluster position, so their cluster is resolved from
+     * the class.
+     * @param cont The Orient database
+     * @param id The identity
+     * @return The Orient record id
+     */
+    private ORecordId getRecordIdForObjectId(ODatabaseObjectTx cont, Object id)
+    {
+        if (id instanceof OrientOID)
+        {
+            return ((OrientOID) id).getRecordId();
+        }
+        else if (id instanceof OID)
+        {
+            OID oid = (OID) id;
+            if (!(oid.getKeyValue() instanceof Number))
             {
-                System.out.println("TODO!!");
-                throw new RuntimeException("TODO!!!!");// TODO
+                return new OrientOID(oid.getPcClass(), oid.getKeyValue()).getRecordId();
             }
+            long recordId = ((Number) oid.getKeyValue()).longValue();
+            return new ORecordId(storeMgr.getClusterIdForClass(cont, oid.getPcClass()), recordId);
         }
-        finally
+        else if (id instanceof String)
         {
-            mconn.release();
+            // String form of an OrientOID "{cluster-id}:{position}[OID]{class-name}", or of an OID "{position}[OID]{class-name}"
+            String idStr = (String) id;
+            if (OrientOID.isOrientOIDString(idStr))
+            {
+                return new OrientOID(idStr).getRecordId();
+            }
+            int separator = idStr.indexOf(OrientOID.STRING_DELIMITER);
+            if (separator > 0)
+            {
+                long recordId = Long.parseLong(idStr.substring(0, separator));
+                String className = idStr.substring(separator + OrientOID.STRING_DELIMITER.length());
+                return new ORecordId(storeMgr.getClusterIdForClass(cont, className), recordId);
+            }
         }
-        return pc;
+        throw new NucleusUserException(LOCALISER.msg("Orient.Find.IdTypeNotSupported", id.getClass().getName()));
+    }
+
+    /**
+     * Convenience method to return the OrientOID for an identity given in another form (e.g an OID created by
+     * OIDFactory when "datanucleus.datastoreIdentityType" isn't "orient"), so that objects are always managed under
+     * the identities that the store creates.
+     * @param id The identity
+     * @param orid The Orient record id of the object
+     * @param pc The object
+     * @return The OrientOID
+     */
+    private static OrientOID getOrientOID(Object id, ORID orid, Object pc)
+    {
+        if (id instanceof OrientOID)
+        {
+            return (OrientOID) id;
+        }
+        return new OrientOID(orid.getClusterId(), orid.getClusterPosition(), pc.getClass().getName());
     }
 
     /**
@@ -507,7 +993,7 @@ public class OrientPersistenceHandler extends AbstractPersistenceHandler
             // then reattach
             // end
 
-            if (connection.getRecordByUserObject(sm.getObject(), true) == null)
+            if (OrientUtils.getRecordForObject(sm, connection, storeMgr) == null)
             {
                 throw new NucleusObjectNotFoundException(LOCALISER.msg("Orient.Object.NotFound", sm.toPrintableID(),
                     sm.getInternalObjectId()));
@@ -22,6 +22,18 @@ import org.datanucleus.properties.PersistencePropertyValidator;
 
 public class OrientPropertyValidator implements PersistencePropertyValidator
 {
+    /** Optimistic versions are checked as each object is flushed. */
+    public static final String VERSION_CHECK_IMMEDIATE = "immediate";
+
+    /**
+     * Optimistic versions are checked for all objects updated in the transaction when it commits, with one query per
+     * batch of records, that the records are still at the versions the transaction wrote.
+     */
+    public static final String VERSION_CHECK_COMMIT = "commit";
+
+    /** Optimistic versions are checked by Orient, as each record is written. */
+    public static final String VERSION_CHECK_DATASTORE = "datastore";
+
     /**
      * Validate the specified property.
      * @param name Name of the property
@@ -30,18 +42,20 @@ public class OrientPropertyValidator implements PersistencePropertyValidator
      */
     public boolean validate(String name, Object value)
     {
-//        if (name == null)
-//        {
-//            return false;
-//        }
-//        else if (name.equals("datanucleus.orient.property..."))
-//        {
-//            if (value instanceof String)
-//            {
-//                return true;
-//            }
-//        }
-        // All properties go through other validators
+        if (name == null)
+        {
+            return false;
+        }
+        else if (name.equals("datanucleus.orient.optimisticVersionCheck"))
+        {
+            if (value instanceof String)
+            {
+                String strVal = (String) value;
+                return strVal.equalsIgnoreCase(VERSION_CHECK_IMMEDIATE) || strVal.equalsIgnoreCase(VERSION_CHECK_COMMIT) ||
+                    strVal.equalsIgnoreCase(VERSION_CHECK_DATASTORE);
+            }
+        }
+        // All other properties go through other validators
         return false;
     }
 }
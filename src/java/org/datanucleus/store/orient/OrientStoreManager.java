@@ -17,16 +17,25 @@ Contributors:
  **********************************************************************/
 package org.datanucleus.store.orient;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.OMFContext;
 import org.datanucleus.PersistenceConfiguration;
+import org.datanucleus.Transaction;
 import org.datanucleus.UserTransaction;
-import org.datanucleus.identity.OIDFactory;
+import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.ClassMetaData;
 import org.datanucleus.metadata.ClassPersistenceModifier;
@@ -40,14 +49,18 @@ import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.StoreData;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.exceptions.NoExtentException;
+import org.datanucleus.store.orient.query.OrientQueryPlan;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 
+import com.orientechnologies.orient.core.command.OCommandOutputListener;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.db.object.ODatabaseObject;
 import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+import com.orientechnologies.orient.core.db.tool.ODatabaseExport;
+import com.orientechnologies.orient.core.db.tool.ODatabaseImport;
 import com.orientechnologies.orient.core.id.ORID;
-import com.orientechnologies.orient.core.id.ORecordId;
 import com.orientechnologies.orient.core.metadata.schema.OSchema;
 
 /**
@@ -60,10 +73,36 @@ public class OrientStoreManager extends AbstractStoreManager
         OrientStoreManager.class.getClassLoader());
 
     /**
-     * Collection of the currently active ObjectContainers. Used for providing class mapping information when they are
+     * Registry of the currently active ObjectContainers. Used for providing class mapping information when they are
      * found.
      */
-    private Set activeObjectContainers = new HashSet();
+    private final ObjectContainerRegistry activeObjectContainers = new ObjectContainerRegistry();
+
+    /** Id of the Orient cluster holding the records of each persistable class, keyed by class name. */
+    private final ConcurrentHashMap<String, Integer> clusterIdsByClassName = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Orient state of each transaction that has any, keyed by the transaction. The state is removed when the
+     * transaction ends; should that not happen the entry goes with the transaction, since the state is only held
+     * weakly here (the transaction holds it as a listener).
+     */
+    private final Map<Transaction, WeakReference<OrientTransactionState>> transactionStates =
+        Collections.synchronizedMap(new WeakHashMap<Transaction, WeakReference<OrientTransactionState>>());
+
+    /** Translations of queries into Orient SQL, keyed by the query. Bounded, dropping the least recently used. */
+    private final Map<String, OrientQueryPlan> queryPlans;
+
+    /** Maximum number of query translations kept, as "datanucleus.orient.queryPlanCacheSize" (0 to keep none). */
+    private final int queryPlanCacheSize;
+
+    /** Pool of open database handles shared by the connection factories of this store. Created on first use. */
+    private OrientConnectionPool connectionPool;
+
+    /**
+     * Handle on the database when this store created an in-memory ("memory:") database. Kept open for the life of
+     * the store so that the storage isn't discarded when all pooled handles are closed, and dropped on close.
+     */
+    private ODatabaseDocumentTx memoryDatabase;
 
     /**
      * Constructor for a new Orient StoreManager. Stores the basic information required for the datastore management.
@@ -82,16 +121,30 @@ public class OrientStoreManager extends AbstractStoreManager
         // Handler for persistence process
         persistenceHandler2 = new OrientPersistenceHandler(this);
 
+        queryPlanCacheSize = conf.getIntProperty("datanucleus.orient.queryPlanCacheSize");
+        queryPlans = Collections.synchronizedMap(new LinkedHashMap<String, OrientQueryPlan>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = -2364785146722873153L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, OrientQueryPlan> eldest)
+            {
+                return size() > queryPlanCacheSize;
+            }
+        });
+
+        if (getConnectionURL().startsWith("memory:"))
+        {
+            initialiseMemoryDatabase(conf.getStringProperty("datanucleus.orient.memory.seedURL"));
+        }
+
         // Make sure transactional connection factory has listener for closing object container
         omfContext.addObjectManagerListener(new ExecutionContext.LifecycleListener()
         {
             public void preClose(ExecutionContext ec)
             {
                 //TODO is it the right place...?
-                ODatabaseObjectTx conn = (ODatabaseObjectTx) getConnection(ec).getConnection();
-                if(!conn.isClosed()){
-                    conn.close();
-                }
+                // Closing the ManagedConnection hands its database back to the pool
+                getConnection(ec).close();
             }
             
             
@@ -109,7 +162,117 @@ public class OrientStoreManager extends AbstractStoreManager
     public void close()
     {
         super.close();
+        synchronized (this)
+        {
+            if (connectionPool != null)
+            {
+                connectionPool.close();
+                connectionPool = null;
+            }
+        }
         activeObjectContainers.clear();
+        clusterIdsByClassName.clear();
+
+        if (memoryDatabase != null)
+        {
+            // In-memory data only lives as long as the store
+            NucleusLogger.DATASTORE.debug(LOCALISER_ORIENT.msg("Orient.Memory.Dropping", getConnectionURL()));
+            memoryDatabase.delete();
+            memoryDatabase = null;
+        }
+    }
+
+    /**
+     * Method to create the in-memory database for a "memory:" URL when it doesn't exist yet in this JVM, optionally
+     * populating it with the contents of another (typically "local:") database.
+     * @param seedURL URL of the database to copy into the new in-memory database (or null)
+     */
+    private void initialiseMemoryDatabase(String seedURL)
+    {
+        String url = getConnectionURL();
+        ODatabaseDocumentTx db = new ODatabaseDocumentTx(url);
+        if (db.exists())
+        {
+            // Created by another store in this JVM, so leave its lifecycle to that store
+            NucleusLogger.DATASTORE.debug(LOCALISER_ORIENT.msg("Orient.Memory.Exists", url));
+            return;
+        }
+
+        NucleusLogger.DATASTORE.debug(LOCALISER_ORIENT.msg("Orient.Memory.Creating", url));
+        db.create();
+        memoryDatabase = db;
+
+        if (!StringUtils.isWhitespace(seedURL))
+        {
+            seedMemoryDatabase(seedURL);
+        }
+    }
+
+    /**
+     * Method to copy the contents of the specified database into the in-memory database, using an Orient export and
+     * import so that links between records are kept.
+     * @param seedURL URL of the database to copy
+     */
+    private void seedMemoryDatabase(String seedURL)
+    {
+        long startTime = System.currentTimeMillis();
+        OCommandOutputListener listener = new OCommandOutputListener()
+        {
+            public void onMessage(String text)
+            {
+                if (NucleusLogger.DATASTORE.isDebugEnabled())
+                {
+                    NucleusLogger.DATASTORE.debug(text);
+                }
+            }
+        };
+
+        ODatabaseDocumentTx seedDb = new ODatabaseDocumentTx(seedURL);
+        File exportFile = null;
+        try
+        {
+            seedDb.open(getConnectionUserName(), getConnectionPassword());
+            exportFile = File.createTempFile("datanucleus-orient-seed", ".export");
+
+            ODatabaseExport export = new ODatabaseExport(seedDb, exportFile.getAbsolutePath(), listener);
+            export.exportDatabase();
+            export.close();
+
+            ODatabaseImport dbImport = new ODatabaseImport(memoryDatabase, exportFile.getAbsolutePath(), listener);
+            dbImport.importDatabase();
+            dbImport.close();
+        }
+        catch (IOException ioe)
+        {
+            throw new NucleusDataStoreException(LOCALISER_ORIENT.msg("Orient.Memory.SeedFailed", getConnectionURL(), seedURL), ioe);
+        }
+        finally
+        {
+            if (!seedDb.isClosed())
+            {
+                seedDb.close();
+            }
+            if (exportFile != null)
+            {
+                exportFile.delete();
+            }
+        }
+
+        NucleusLogger.DATASTORE.info(LOCALISER_ORIENT.msg("Orient.Memory.Seeded", getConnectionURL(), seedURL,
+            "" + (System.currentTimeMillis() - startTime)));
+    }
+
+    /**
+     * Accessor for the pool of open database handles for this store, creating it if not yet in use.
+     * @return The connection pool
+     */
+    public synchronized OrientConnectionPool getConnectionPool()
+    {
+        if (connectionPool == null)
+        {
+            connectionPool = new OrientConnectionPool(this);
+        }
+        return connectionPool;
     }
 
     /**
@@ -186,36 +349,171 @@ public class OrientStoreManager extends AbstractStoreManager
         super.registerStoreData(data);
 
         // Make this class config known to all active ObjectContainers for this store
-        if (activeObjectContainers.size() > 0)
+        ODatabaseObjectTx[] containers = activeObjectContainers.getContainers();
+        if (containers.length > 0)
         {
-            Iterator containerIter = activeObjectContainers.iterator();
-            while (containerIter.hasNext())
+            ClassLoaderResolver clr = omfContext.getClassLoaderResolver(null);
+            for (int i = 0; i < containers.length; i++)
             {
-                ODatabaseObjectTx cont = (ODatabaseObjectTx) containerIter.next();
-                registerClassInOrient(cont, (AbstractClassMetaData) data.getMetaData());
+                registerClassInOrient(containers[i], (AbstractClassMetaData) data.getMetaData(), clr);
             }
         }
     }
 
+    /**
+     * Method to make the class of the specified metadata known to an ObjectContainer. Does nothing if the class is
+     * already registered with this container.
+     * @param cont ObjectContainer
+     * @param metaData MetaData of the class
+     */
     public void registerClassInOrient(ODatabaseObjectTx cont, AbstractClassMetaData metaData)
     {
-        try
+        registerClassInOrient(cont, metaData, omfContext.getClassLoaderResolver(null));
+    }
+
+    /**
+     * Method to make the class of the specified metadata known to an ObjectContainer. Does nothing if the class is
+     * already registered with this container.
+     * @param cont ObjectContainer
+     * @param metaData MetaData of the class
+     * @param clr ClassLoader resolver to load the class with
+     */
+    public void registerClassInOrient(ODatabaseObjectTx cont, AbstractClassMetaData metaData, ClassLoaderResolver clr)
+    {
+        if (activeObjectContainers.isClassRegistered(cont, metaData.getFullClassName()))
+        {
+            return;
+        }
+        registerClassWithContainer(cont, clr.classForName(metaData.getFullClassName()));
+    }
+
+    /**
+     * Method to make a class known to an ObjectContainer, remembering that it is so that later calls for the same
+     * container do nothing. Also looks up the cluster of the class.
+     * @param cont ObjectContainer
+     * @param clazz The class
+     */
+    public void registerClassWithContainer(ODatabaseObjectTx cont, Class clazz)
+    {
+        if (activeObjectContainers.isClassRegistered(cont, clazz.getName()))
         {
-            registerClassInOrient(cont, Class.forName(metaData.getFullClassName()));
+            return;
         }
-        catch (ClassNotFoundException e)
+
+        registerClassInOrient(cont, clazz);
+        if (!clusterIdsByClassName.containsKey(clazz.getName()))
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            getClusterIdForClass(cont, clazz.getName());
         }
+        activeObjectContainers.classRegistered(cont, clazz.getName());
     }
 
+    /**
+     * Method to make a class known to an ObjectContainer, as an entity class and in the schema. This asks Orient every
+     * time it is called; within the store registerClassWithContainer is used, which only does so once per container.
+     * @param cont ObjectContainer
+     * @param clazz The class
+     */
     public static void registerClassInOrient(ODatabaseObjectTx cont, Class clazz)
     {
         if(cont.getEntityManager().getEntityClass(clazz.getSimpleName()) == null){
             
             cont.getEntityManager().registerEntityClass(clazz);
         }
+
+        // A new (e.g in-memory) database has no schema yet, and queries against an unknown class fail
+        OSchema schema = cont.getMetadata().getSchema();
+        if (!schema.existsClass(clazz.getSimpleName()))
+        {
+            schema.createClass(clazz.getSimpleName());
+            schema.save();
+        }
+    }
+
+    /**
+     * Accessor for the id of the Orient cluster that holds the records of a persistable class. The id is looked up
+     * in the database the first time (normally when the class is registered) and taken from a table after that.
+     * @param cont ObjectContainer to look the cluster up in if not yet known
+     * @param className Name of the persistable class
+     * @return The cluster id
+     */
+    public int getClusterIdForClass(ODatabaseObjectTx cont, String className)
+    {
+        Integer clusterId = clusterIdsByClassName.get(className);
+        if (clusterId == null)
+        {
+            // Orient names the cluster of a class after its simple name, in lower case
+            String clusterName = className.substring(className.lastIndexOf('.') + 1).toLowerCase();
+            clusterId = Integer.valueOf(cont.getClusterIdByName(clusterName));
+            if (clusterId.intValue() < 0)
+            {
+                // No cluster yet, so don't remember that
+                return clusterId.intValue();
+            }
+            clusterIdsByClassName.put(className, clusterId);
+        }
+        return clusterId.intValue();
+    }
+
+    /**
+     * Accessor for the Orient state of the active transaction of an ExecutionContext. The state is created and
+     * registered as a listener of the transaction on first use.
+     * @param ec execution context
+     * @return The transaction state, or null if no transaction is active
+     */
+    public OrientTransactionState getTransactionState(ExecutionContext ec)
+    {
+        Transaction tx = ec.getTransaction();
+        if (!tx.isActive())
+        {
+            return null;
+        }
+
+        synchronized (transactionStates)
+        {
+            WeakReference<OrientTransactionState> txStateRef = transactionStates.get(tx);
+            OrientTransactionState txState = (txStateRef != null ? txStateRef.get() : null);
+            if (txState == null)
+            {
+                txState = new OrientTransactionState(this, ec);
+                tx.addTransactionEventListener(txState);
+                transactionStates.put(tx, new WeakReference<OrientTransactionState>(txState));
+            }
+            return txState;
+        }
+    }
+
+    /**
+     * Accessor for the translation into Orient SQL kept for a query.
+     * @param key Key of the query, made of its language, its single-string form and anything else its translation
+     *     depends on
+     * @return The translation, or null if none is kept
+     */
+    public OrientQueryPlan getQueryPlan(String key)
+    {
+        return queryPlans.get(key);
+    }
+
+    /**
+     * Method to keep the translation into Orient SQL of a query, for reuse by later executions.
+     * @param key Key of the query
+     * @param plan The translation
+     */
+    public void putQueryPlan(String key, OrientQueryPlan plan)
+    {
+        if (queryPlanCacheSize > 0)
+        {
+            queryPlans.put(key, plan);
+        }
+    }
+
+    /**
+     * Method to forget the Orient state of a transaction, when the transaction has ended.
+     * @param tx The transaction
+     */
+    void removeTransactionState(Transaction tx)
+    {
+        transactionStates.remove(tx);
     }
 
     /**
@@ -230,16 +528,18 @@ public class OrientStoreManager extends AbstractStoreManager
             return;
         }
 
-        // Register all known classes with the ObjectContainer of this transaction
+        // Register the container before loading it up, so a class registered concurrently is not missed
+        activeObjectContainers.add(cont);
 
+        // Register all known classes with the ObjectContainer of this transaction
+        ClassLoaderResolver clr = omfContext.getClassLoaderResolver(null);
         Collection storeDataValues = storeDataMgr.getManagedStoreData();
         Iterator iter = storeDataValues.iterator();
         while (iter.hasNext())
         {
             StoreData data = (StoreData) iter.next();
-            registerClassInOrient(cont, (AbstractClassMetaData) data.getMetaData());
+            registerClassInOrient(cont, (AbstractClassMetaData) data.getMetaData(), clr);
         }
-        activeObjectContainers.add(cont);
     }
 
     /**
@@ -286,8 +586,7 @@ public class OrientStoreManager extends AbstractStoreManager
                 {
                     return null;
                 }
-                String idKey = ORecordId.generateString(((ORecordId) orid).getClusterId(), ((ORecordId) id).getClusterPosition());
-                return OIDFactory.getInstance(getOMFContext(), idKey);
+                return new OrientOID(orid.getClusterId(), orid.getClusterPosition(), pc.getClass().getName());
             }
             else if (cmd.getIdentityType() == IdentityType.APPLICATION)
             {
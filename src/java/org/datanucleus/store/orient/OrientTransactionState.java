@@ -0,0 +1,134 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.datanucleus.Transaction;
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+
+import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+
+/**
+ * State kept by the Orient plugin for the duration of a transaction. Registered as a listener of the transaction when
+ * first needed, and deregistered when the transaction ends. Records the ObjectProviders that were given an Orient
+ * record handle during the transaction, so that the handles can be dropped when the transaction ends, since its
+ * database handle goes back to the pool then. Holds no reference to the transaction itself.
+ */
+public class OrientTransactionState implements TransactionEventListener
+{
+    private final OrientStoreManager storeMgr;
+
+    private final ExecutionContext ec;
+
+    /** ObjectProviders given a record handle during this transaction. */
+    private final List<ObjectProvider> handledObjects = new ArrayList<ObjectProvider>();
+
+    /**
+     * Constructor.
+     * @param storeMgr Manager for the store
+     * @param ec execution context whose transaction this is
+     */
+    public OrientTransactionState(OrientStoreManager storeMgr, ExecutionContext ec)
+    {
+        this.storeMgr = storeMgr;
+        this.ec = ec;
+    }
+
+    /**
+     * Method to record that an ObjectProvider has been given a record handle in this transaction.
+     * @param sm The ObjectProvider
+     */
+    public void recordHandleAssigned(ObjectProvider sm)
+    {
+        handledObjects.add(sm);
+    }
+
+    /**
+     * Method to make the database forget the objects of some classes given a record handle in this transaction, along
+     * with their records, after an Orient command has changed or deleted records of those classes.
+     * @param cont The Orient database
+     * @param classes The classes
+     */
+    public void forgetObjects(ODatabaseObjectTx cont, Collection<Class> classes)
+    {
+        for (int i = handledObjects.size() - 1; i >= 0; i--)
+        {
+            ObjectProvider sm = handledObjects.get(i);
+            if (classes.contains(sm.getObject().getClass()))
+            {
+                OrientUtils.forgetObject(sm, cont);
+                handledObjects.remove(i);
+            }
+        }
+    }
+
+    public void transactionStarted()
+    {
+    }
+
+    public void transactionEnded()
+    {
+        clearRecordHandles();
+        Transaction tx = ec.getTransaction();
+        tx.removeTransactionEventListener(this);
+        storeMgr.removeTransactionState(tx);
+    }
+
+    public void transactionPreFlush()
+    {
+    }
+
+    public void transactionFlushed()
+    {
+    }
+
+    public void transactionPreCommit()
+    {
+    }
+
+    public void transactionCommitted()
+    {
+    }
+
+    public void transactionPreRollBack()
+    {
+    }
+
+    public void transactionRolledBack()
+    {
+        // Records may have been discarded or be at a version that no longer exists, so look them up again next time
+        clearRecordHandles();
+    }
+
+    /**
+     * Method to drop the record handles given out in this transaction.
+     */
+    private void clearRecordHandles()
+    {
+        for (int i = 0; i < handledObjects.size(); i++)
+        {
+            OrientUtils.clearRecordForObject(handledObjects.get(i));
+        }
+        handledObjects.clear();
+    }
+}
@@ -17,22 +17,65 @@ Contributors:
  **********************************************************************/
 package org.datanucleus.store.orient;
 
-import org.datanucleus.identity.OIDFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.jdo.listener.DeleteCallback;
+
+import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.IdentityType;
 import org.datanucleus.state.ObjectProviderFactory;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
+import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.orient.fieldmanager.AssignStateManagerFieldManager;
+import org.datanucleus.util.Localiser;
+import org.datanucleus.util.NucleusLogger;
 
 import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
-import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.OCommandSQL;
 
 /**
  * Utilities for Orient (http://www.orientechnologies.com).
  */
 public class OrientUtils
 {
+    /** Localiser for messages. */
+    protected static final Localiser LOCALISER = Localiser.getInstance("org.datanucleus.store.orient.Localisation",
+        OrientStoreManager.class.getClassLoader());
+
+    /** Key of the ObjectProvider associated value holding the Orient record of the object. */
+    private static final String RECORD_HANDLE_KEY = "org.datanucleus.store.orient.RecordHandle";
+
+    /**
+     * Orient record of an object, with the database it was obtained from and the lease the database had then.
+     */
+    private static class RecordHandle
+    {
+        final ODatabaseObjectTx cont;
+
+        final long lease;
+
+        final ODocument record;
+
+        RecordHandle(ODatabaseObjectTx cont, ODocument record)
+        {
+            this.cont = cont;
+            this.lease = OrientConnectionPool.getLease(cont);
+            this.record = record;
+        }
+
+        boolean isValidFor(ODatabaseObjectTx db)
+        {
+            return cont == db && lease == OrientConnectionPool.getLease(db);
+        }
+    }
+
     /**
      * Convenience method to take an object returned by Orient (from a query for example), and prepare it for passing to
      * the user. Makes sure there is a StateManager connected, with associated fields marked as loaded.
@@ -56,17 +99,11 @@ public class OrientUtils
         {
             // Find the identity
             Object id = null;
+            ODocument record = cont.getRecordByUserObject(obj, false);
             if (cmd.getIdentityType() == IdentityType.DATASTORE)
             {
-                ORecordId orid = (ORecordId) cont.getRecordByUserObject(obj, false).getIdentity();
-                String orientId = orid.toString();
-                String[] oidParts = orientId.split(":");
-                String jdoOid = "";
-                jdoOid += oidParts[1];
-                jdoOid += "[OID]";
-                jdoOid += obj.getClass().getName();
-                
-                id = OIDFactory.getInstance(ec.getOMFContext(), jdoOid);
+                ORID orid = record.getIdentity();
+                id = new OrientOID(orid.getClusterId(), orid.getClusterPosition(), obj.getClass().getName());
             }
             else
             {
@@ -75,6 +112,10 @@ public class OrientUtils
 
             // Object not managed so give it a StateManager before returning it
             sm = ObjectProviderFactory.newForPersistentClean(ec, id, obj);
+            if (record != null)
+            {
+                setRecordForObject(sm, cont, record, mgr);
+            }
             sm.provideFields(cmd.getAllMemberPositions(), new AssignStateManagerFieldManager(cont, sm));
         }
 
@@ -82,4 +123,266 @@ public class OrientUtils
 
         return sm;
     }
+
+    /**
+     * Accessor for the Orient record of a managed object. The record (which carries the identity and version of the
+     * object) is looked up once per database and then kept on the ObjectProvider, so later operations on the object
+     * don't repeat the lookup. The record is dropped when the transaction ends, and is not used once the database has
+     * been given back to the pool (which may lend the same database out again).
+     * @param sm ObjectProvider for the object
+     * @param cont The Orient database in use
+     * @param mgr OrientStoreManager
+     * @return The record, or null if the object has no record
+     */
+    public static ODocument getRecordForObject(ObjectProvider sm, ODatabaseObjectTx cont, OrientStoreManager mgr)
+    {
+        RecordHandle handle = (RecordHandle) sm.getAssociatedValue(RECORD_HANDLE_KEY);
+        if (handle != null && handle.isValidFor(cont))
+        {
+            return handle.record;
+        }
+
+        ODocument record = cont.getRecordByUserObject(sm.getObject(), false);
+        if (record != null)
+        {
+            setRecordForObject(sm, cont, record, mgr);
+        }
+        return record;
+    }
+
+    /**
+     * Method to keep the Orient record of a managed object on its ObjectProvider.
+     * @param sm ObjectProvider for the object
+     * @param cont The Orient database the record belongs to
+     * @param record The record
+     * @param mgr OrientStoreManager
+     */
+    public static void setRecordForObject(ObjectProvider sm, ODatabaseObjectTx cont, ODocument record,
+            OrientStoreManager mgr)
+    {
+        sm.setAssociatedValue(RECORD_HANDLE_KEY, new RecordHandle(cont, record));
+        OrientTransactionState txState = mgr.getTransactionState(sm.getExecutionContext());
+        if (txState != null)
+        {
+            txState.recordHandleAssigned(sm);
+        }
+    }
+
+    /**
+     * Method to make a database forget a managed object and its record, so that the object is read afresh (as a new
+     * object) when next loaded through the database, and to drop the record kept on its ObjectProvider.
+     * @param sm ObjectProvider for the object
+     * @param cont The Orient database
+     */
+    public static void forgetObject(ObjectProvider sm, ODatabaseObjectTx cont)
+    {
+        RecordHandle handle = (RecordHandle) sm.getAssociatedValue(RECORD_HANDLE_KEY);
+        cont.unregisterPojo(sm.getObject(), (handle != null && handle.isValidFor(cont) ? handle.record : null));
+        clearRecordForObject(sm);
+    }
+
+    /**
+     * Method to drop the Orient record kept on the ObjectProvider of an object, if any.
+     * @param sm ObjectProvider for the object
+     */
+    public static void clearRecordForObject(ObjectProvider sm)
+    {
+        sm.setAssociatedValue(RECORD_HANDLE_KEY, null);
+    }
+
+    /**
+     * Convenience method to return the absolute numbers of the fields of a class whose values are deleted along with
+     * an object of the class, i.e dependent fields, and collections, arrays and maps with dependent elements, keys or
+     * values.
+     * @param cmd MetaData for the class
+     * @return Absolute numbers of the dependent fields
+     */
+    public static int[] getDependentMemberPositions(AbstractClassMetaData cmd)
+    {
+        int[] memberPositions = cmd.getAllMemberPositions();
+        int[] dependentPositions = new int[memberPositions.length];
+        int number = 0;
+        for (int i = 0; i < memberPositions.length; i++)
+        {
+            AbstractMemberMetaData mmd = cmd.getMetaDataForManagedMemberAtAbsolutePosition(memberPositions[i]);
+            if (mmd.isDependent() ||
+                (mmd.hasCollection() && mmd.getCollection().isDependentElement()) ||
+                (mmd.hasArray() && mmd.getArray().isDependentElement()) ||
+                (mmd.hasMap() && (mmd.getMap().isDependentKey() || mmd.getMap().isDependentValue())))
+            {
+                dependentPositions[number++] = memberPositions[i];
+            }
+        }
+
+        int[] positions = new int[number];
+        System.arraycopy(dependentPositions, 0, positions, 0, number);
+        return positions;
+    }
+
+    /**
+     * Convenience method to return whether objects of a class (and optionally its subclasses) can be deleted directly
+     * in the datastore, i.e nothing has to be done for each object as it is deleted. That rules out classes with
+     * dependent fields, classes implementing DeleteCallback and classes with listeners defined in their metadata.
+     * Listeners registered with the persistence manager (factory) can't be seen here, so users relying on them have
+     * to keep bulk deletes off.
+     * @param ec execution context
+     * @param candidateClass The class
+     * @param subclasses Whether to check the subclasses too
+     * @return Whether the objects can be deleted by an Orient command
+     */
+    public static boolean isDeletableInDatastore(ExecutionContext ec, Class candidateClass, boolean subclasses)
+    {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(candidateClass, clr);
+        if (cmd == null || DeleteCallback.class.isAssignableFrom(candidateClass) || hasListeners(cmd) ||
+            getDependentMemberPositions(cmd).length > 0)
+        {
+            return false;
+        }
+
+        if (subclasses)
+        {
+            String[] subclassNames = ec.getMetaDataManager().getSubclassesForClass(candidateClass.getName(), true);
+            if (subclassNames != null)
+            {
+                for (int i = 0; i < subclassNames.length; i++)
+                {
+                    AbstractClassMetaData subCmd = ec.getMetaDataManager().getMetaDataForClass(subclassNames[i], clr);
+                    if (DeleteCallback.class.isAssignableFrom(clr.classForName(subclassNames[i])) ||
+                        hasListeners(subCmd) || getDependentMemberPositions(subCmd).length > 0)
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convenience method to return whether the metadata of a class defines lifecycle listeners for it, its own or
+     * inherited from its superclasses.
+     * @param cmd MetaData for the class
+     * @return Whether there are listeners
+     */
+    private static boolean hasListeners(AbstractClassMetaData cmd)
+    {
+        for (AbstractClassMetaData current = cmd; current != null; current = current.getSuperAbstractClassMetaData())
+        {
+            List listeners = current.getListeners();
+            if (listeners != null && !listeners.isEmpty())
+            {
+                return true;
+            }
+            if (current.isExcludeSuperClassListeners())
+            {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Convenience method to execute an Orient SQL command that updates or deletes objects of a class in bulk. Orient
+     * keeps the records of each class apart, so where subclasses are affected too the command is executed for each of
+     * them as well. Changes not yet flushed are flushed first, so that the command sees them and doesn't get
+     * overwritten by them later. As the objects affected aren't known individually, all objects of the class are
+     * evicted from the level 2 cache, the ExecutionContext and the records and objects cached by the database
+     * afterwards, so they are read again from the datastore when next used.
+     * @param ec execution context
+     * @param command Start of the Orient SQL command, up to the class name (e.g "delete from ")
+     * @param clause Rest of the Orient SQL command, after the class name, with a "?" placeholder for each parameter
+     * @param args Values to bind to the placeholders
+     * @param candidateClass The class of the objects affected
+     * @param subclasses Whether objects of subclasses are affected too
+     * @return Number of records affected, as reported by Orient
+     */
+    public static long executeBulkCommand(ExecutionContext ec, String command, String clause, Object[] args,
+            Class candidateClass, boolean subclasses)
+    {
+        List<Class> classes = new ArrayList<Class>();
+        classes.add(candidateClass);
+        if (subclasses)
+        {
+            ClassLoaderResolver clr = ec.getClassLoaderResolver();
+            String[] subclassNames = ec.getMetaDataManager().getSubclassesForClass(candidateClass.getName(), true);
+            if (subclassNames != null)
+            {
+                for (int i = 0; i < subclassNames.length; i++)
+                {
+                    classes.add(clr.classForName(subclassNames[i]));
+                }
+            }
+        }
+
+        ec.flushInternal(true);
+
+        OrientStoreManager storeMgr = (OrientStoreManager) ec.getStoreManager();
+        ManagedConnection mconn = storeMgr.getConnection(ec);
+        try
+        {
+            ODatabaseObjectTx cont = (ODatabaseObjectTx) mconn.getConnection();
+            long number = 0;
+            for (int i = 0; i < classes.size(); i++)
+            {
+                Class cls = classes.get(i);
+                storeMgr.registerClassWithContainer(cont, cls);
+
+                String sql = command + cls.getSimpleName() + clause;
+                long startTime = System.currentTimeMillis();
+                Object result = cont.command(new OCommandSQL(sql)).execute(args);
+                long classNumber = (result instanceof Number ? ((Number) result).longValue() : 0);
+                if (NucleusLogger.QUERY.isDebugEnabled())
+                {
+                    NucleusLogger.QUERY.debug(LOCALISER.msg("Orient.Query.BulkCommand", sql, "" + classNumber,
+                        "" + (System.currentTimeMillis() - startTime)));
+                }
+                number += classNumber;
+            }
+
+            OrientTransactionState txState = storeMgr.getTransactionState(ec);
+            if (txState != null)
+            {
+                txState.forgetObjects(cont, classes);
+            }
+            cont.getLevel1Cache().clear();
+            ec.getOMFContext().getLevel2Cache().evictAll(candidateClass, subclasses);
+            ec.evictObjects(candidateClass, subclasses);
+            return number;
+        }
+        finally
+        {
+            mconn.release();
+        }
+    }
+
+    /**
+     * Convenience method to return whether the values of the specified fields can be written directly onto the Orient
+     * record of an object, i.e they are all of a type that Orient stores as is (primitives, wrappers, String, Date,
+     * byte[]). Persistable, container and other types need the object serialiser of Orient.
+     * @param cmd MetaData for the class
+     * @param fieldNumbers Absolute numbers of the fields
+     * @return Whether all of the fields can be written directly
+     */
+    public static boolean isStorableInRecord(AbstractClassMetaData cmd, int[] fieldNumbers)
+    {
+        for (int i = 0; i < fieldNumbers.length; i++)
+        {
+            Class type = cmd.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumbers[i]).getType();
+            if (type.isPrimitive())
+            {
+                if (type == char.class)
+                {
+                    return false;
+                }
+            }
+            else if (type != String.class && type != Integer.class && type != Long.class && type != Short.class &&
+                    type != Byte.class && type != Float.class && type != Double.class && type != Boolean.class &&
+                    type != Date.class && type != byte[].class)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,159 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient.query;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of the result objects of a query, keyed by their index in the results. Held in segments of fixed size that
+ * are created as indices are first used, so looking up an object needs no allocation. Objects are held by hard, soft
+ * or weak references, as for the values of a HashMap, SoftValueMap or WeakValueMap. Safe for use by several threads
+ * without locking: segments and objects are published atomically, and the first object cached for an index is the
+ * one every thread gets.
+ */
+public class IndexedResultCache
+{
+    /** Objects are held until the cache is cleared. */
+    public static final int HARD = 0;
+
+    /** Objects are held by soft references, so can be dropped when memory is short. */
+    public static final int SOFT = 1;
+
+    /** Objects are held by weak references, so are dropped when no longer used elsewhere. */
+    public static final int WEAK = 2;
+
+    /** Number of indices in a segment (a power of 2). */
+    private static final int SEGMENT_SHIFT = 10;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final int referenceType;
+
+    /**
+     * Segments of the cache, each holding the objects (or references to them) of SEGMENT_SIZE indices. The array is
+     * never changed once published; adding a segment publishes a copy.
+     */
+    private final AtomicReference<AtomicReferenceArray[]> segments =
+        new AtomicReference<AtomicReferenceArray[]>(new AtomicReferenceArray[16]);
+
+    /**
+     * Constructor.
+     * @param referenceType How objects are held (HARD, SOFT or WEAK)
+     */
+    public IndexedResultCache(int referenceType)
+    {
+        this.referenceType = referenceType;
+    }
+
+    /**
+     * Accessor for the object cached for an index.
+     * @param index The index
+     * @return The object, or null if none is cached (or it has been dropped)
+     */
+    public Object get(int index)
+    {
+        int segmentNumber = index >>> SEGMENT_SHIFT;
+        AtomicReferenceArray[] segs = segments.get();
+        if (segmentNumber >= segs.length || segs[segmentNumber] == null)
+        {
+            return null;
+        }
+        return dereference(segs[segmentNumber].get(index & SEGMENT_MASK));
+    }
+
+    /**
+     * Method to cache the object for an index, unless another object is already cached for it.
+     * @param index The index
+     * @param obj The object
+     * @return The object now cached for the index (the one already cached, if any)
+     */
+    public Object putIfAbsent(int index, Object obj)
+    {
+        if (obj == null)
+        {
+            return null;
+        }
+
+        AtomicReferenceArray segment = getSegment(index >>> SEGMENT_SHIFT);
+        int offset = index & SEGMENT_MASK;
+        Object value = (referenceType == HARD ? obj :
+            (referenceType == SOFT ? new SoftReference(obj) : new WeakReference(obj)));
+        while (true)
+        {
+            Object current = segment.get(offset);
+            Object currentObj = dereference(current);
+            if (currentObj != null)
+            {
+                return currentObj;
+            }
+            if (segment.compareAndSet(offset, current, value))
+            {
+                return obj;
+            }
+        }
+    }
+
+    /**
+     * Method to drop all cached objects.
+     */
+    public void clear()
+    {
+        segments.set(new AtomicReferenceArray[16]);
+    }
+
+    /**
+     * Accessor for a segment, adding it (and growing the segments) if it doesn't exist yet.
+     * @param segmentNumber Number of the segment
+     * @return The segment
+     */
+    private AtomicReferenceArray getSegment(int segmentNumber)
+    {
+        while (true)
+        {
+            AtomicReferenceArray[] segs = segments.get();
+            if (segmentNumber < segs.length && segs[segmentNumber] != null)
+            {
+                return segs[segmentNumber];
+            }
+
+            AtomicReferenceArray[] newSegs = new AtomicReferenceArray[segmentNumber < segs.length ? segs.length :
+                Math.max(segs.length * 2, segmentNumber + 1)];
+            System.arraycopy(segs, 0, newSegs, 0, segs.length);
+            newSegs[segmentNumber] = new AtomicReferenceArray(SEGMENT_SIZE);
+            if (segments.compareAndSet(segs, newSegs))
+            {
+                return newSegs[segmentNumber];
+            }
+        }
+    }
+
+    private Object dereference(Object value)
+    {
+        if (value != null && referenceType != HARD)
+        {
+            return ((Reference) value).get();
+        }
+        return value;
+    }
+}
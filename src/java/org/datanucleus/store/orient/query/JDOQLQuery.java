@@ -17,6 +17,7 @@ Contributors:
  **********************************************************************/
 package org.datanucleus.store.orient.query;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -26,26 +27,22 @@ import java.util.Map;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
-import org.datanucleus.query.compiler.QueryCompilation;
 import org.datanucleus.query.evaluator.JDOQLEvaluator;
 import org.datanucleus.query.evaluator.JavaQueryEvaluator;
-import org.datanucleus.query.expression.DyadicExpression;
-import org.datanucleus.query.expression.Expression;
-import org.datanucleus.query.expression.Expression.Operator;
-import org.datanucleus.query.expression.Literal;
 import org.datanucleus.query.expression.ParameterExpression;
-import org.datanucleus.query.expression.PrimaryExpression;
-import org.datanucleus.query.expression.SubqueryExpression;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.orient.OrientStoreManager;
 import org.datanucleus.store.orient.OrientUtils;
+import org.datanucleus.store.orient.exceptions.FilterNotParsableException;
+import org.datanucleus.store.orient.exceptions.OrderingMalformedException;
 import org.datanucleus.store.query.AbstractJDOQLQuery;
+import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 
 import com.orientechnologies.orient.core.db.object.ODatabaseObject;
 import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
-import com.orientechnologies.orient.core.query.OQuery;
+import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 /**
@@ -54,6 +51,12 @@ import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
  */
 public class JDOQLQuery extends AbstractJDOQLQuery
 {
+    protected static final Localiser LOCALISER_ORIENT = Localiser.getInstance(
+        "org.datanucleus.store.orient.Localisation", OrientStoreManager.class.getClassLoader());
+
+    /** Extension to enable running deletePersistentAll as a single Orient DELETE command. */
+    public static final String EXTENSION_BULK_DELETE_IN_DATASTORE = "datanucleus.orient.bulkDeleteInDatastore";
+
     /**
      * Constructs a new query instance that uses the given persistence manager.
      * @param ec execution context
@@ -87,13 +90,19 @@ public class JDOQLQuery extends AbstractJDOQLQuery
     {
         ClassLoaderResolver clr = ec.getClassLoaderResolver();
 
+        if (type == BULK_UPDATE)
+        {
+            return Long.valueOf(performBulkUpdate(parameters));
+        }
+
         if (candidateCollection != null && candidateCollection.isEmpty())
         {
             return Collections.EMPTY_LIST;
         }
 
         boolean inMemory = evaluateInMemory();
-        ManagedConnection mconn = ec.getStoreManager().getConnection(ec);
+        OrientStoreManager storeMgr = (OrientStoreManager) ec.getStoreManager();
+        ManagedConnection mconn = storeMgr.getConnection(ec);
         ODatabaseObjectTx cont = (ODatabaseObjectTx) mconn.getConnection();
         try
         {
@@ -103,30 +112,46 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             {
                 NucleusLogger.QUERY.debug(LOCALISER.msg("021046", "JDOQL", getSingleStringQuery(), null));
             }
-            List candidates = null;
-            boolean filterInMemory = false;
-            boolean orderingInMemory = false;
-            // if (datastoreCompilation == null)
-            // {
-            // Create the SODA query optionally with the candidate and filter restrictions
-            OQuery query = createSQLQuery(cont, compilation, parameters, inMemory);
-            candidates = cont.query(query);
-            if (inMemory)
+            storeMgr.registerClassWithContainer(cont, compilation.getCandidateClass());
+
+            // Use the translation kept from an earlier execution where there is one for these parameter values,
+            // otherwise translate the query (and keep that, unless it only applies to these parameter values)
+            String planKey = getQueryPlanKey(inMemory);
+            OrientQueryPlan plan = storeMgr.getQueryPlan(planKey);
+            Object[] args = (plan != null ? plan.getParameterValues(parameters) : null);
+            if (args == null)
             {
-                filterInMemory = true;
-                orderingInMemory = true;
+                OrientQueryTranslator translator = new OrientQueryTranslator(compilation, parameters, true);
+                plan = compileQueryPlan(translator, inMemory, clr);
+                if (!translator.isValueDependent())
+                {
+                    storeMgr.putQueryPlan(planKey, plan);
+                }
+                args = plan.getParameterValues(parameters);
             }
-            // }
-            // else
-            // {
-            // candidates = new ArrayList(candidateCollection);
-            // filterInMemory = true;
-            // orderingInMemory = true;
-            // }
+
+            if (plan.getType() != OrientQueryPlan.CANDIDATES)
+            {
+                if (ec.getTransaction().isActive())
+                {
+                    // Orient computes the results from its records, so write any changes made in this transaction
+                    ec.flushInternal(true);
+                }
+                List results = (plan.getType() == OrientQueryPlan.PROJECTION ?
+                    performProjection(cont, plan, args) : performAggregate(cont, plan, args));
+                if (NucleusLogger.QUERY.isDebugEnabled())
+                {
+                    NucleusLogger.QUERY.debug(LOCALISER.msg("021074", "JDOQL", "" + (System.currentTimeMillis() - startTime)));
+                }
+                return results;
+            }
+
+            List candidates = cont.query(new OSQLSynchQuery(plan.getSQL()), args);
 
             // Apply any restrictions to the results (that we can't use in the input SODA query)
             JavaQueryEvaluator resultMapper = new JDOQLEvaluator(this, candidates, compilation, parameters, clr);
-            Collection results = resultMapper.execute(filterInMemory, orderingInMemory, true, true, true);
+            Collection results = resultMapper.execute(plan.isFilterInMemory(), plan.isOrderingInMemory(), true, true,
+                plan.isRangeInMemory());
 
             if (NucleusLogger.QUERY.isDebugEnabled())
             {
@@ -139,7 +164,7 @@ public class JDOQLQuery extends AbstractJDOQLQuery
             {
                 Object obj = iter.next();
                 AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(obj.getClass(), clr);
-                OrientUtils.prepareOrientObjectForUse(obj, ec, (ODatabaseObjectTx) cont, cmd, (OrientStoreManager) ec.getStoreManager());
+                OrientUtils.prepareOrientObjectForUse(obj, ec, (ODatabaseObjectTx) cont, cmd, storeMgr);
             }
             return results;
         }
@@ -151,113 +176,343 @@ public class JDOQLQuery extends AbstractJDOQLQuery
     }
 
     /**
-     * @param cont
-     * @param compilation
-     * @param parameters
-     * @param inMemory
-     * @return
+     * Accessor for the key of the translation of this query kept by the store manager. Made of everything the
+     * translation depends on apart from the parameter values.
+     * @param inMemory Whether the query is evaluated in memory
+     * @return The key
      */
-    private OQuery createSQLQuery(ODatabaseObjectTx cont, QueryCompilation compilation, Map parameters, boolean inMemory)
+    private String getQueryPlanKey(boolean inMemory)
     {
-       
-        Expression where = compilation.getExprFilter();
+        StringBuffer key = new StringBuffer("JDOQL");
+        key.append(subclasses ? " subclasses" : "").append(inMemory ? " inMemory" : "");
+        if (resultClass != null)
+        {
+            key.append(" resultClass=").append(resultClass.getName());
+        }
+        String range = getRangeClause();
+        if (range != null)
+        {
+            key.append(" ").append(range);
+        }
+        key.append(" : ").append(getSingleStringQuery());
+        return key.toString();
+    }
 
-        StringBuffer sqlQuery = new StringBuffer("select from ");
-        if (this.subclasses)
+    /**
+     * Method to translate this query into Orient SQL, as much of it as possible, leaving the rest to be evaluated in
+     * memory.
+     * @param translator Translator of the query
+     * @param inMemory Whether the query is evaluated in memory
+     * @param clr ClassLoader resolver
+     * @return The translation
+     */
+    private OrientQueryPlan compileQueryPlan(OrientQueryTranslator translator, boolean inMemory,
+            ClassLoaderResolver clr)
+    {
+        boolean filterInMemory = inMemory;
+        boolean orderingInMemory = inMemory;
+        String filter = null;
+        String ordering = null;
+        if (!inMemory)
         {
-//            sqlQuery.append("@");//TODO
+            try
+            {
+                filter = translator.translateFilter();
+            }
+            catch (FilterNotParsableException fnpe)
+            {
+                // Filter can't be expressed in Orient SQL, so select all candidates and filter them in memory
+                filterInMemory = true;
+            }
+
+            try
+            {
+                ordering = translator.translateOrdering();
+            }
+            catch (FilterNotParsableException fnpe)
+            {
+                // Ordering can't be expressed in Orient SQL, so sort in memory (by all orderings)
+                orderingInMemory = true;
+            }
+            catch (OrderingMalformedException ome)
+            {
+                orderingInMemory = true;
+            }
+        }
+
+        // A result of plain fields of the candidate can be fetched as a projection, returning rows of values
+        // without creating (and managing) the candidate objects. Likewise aggregates are computed by Orient.
+        // Orient SQL has no "group by", so grouped results are evaluated in memory
+        String[] resultFields = null;
+        String[] aggregates = null;
+        if (!filterInMemory && !orderingInMemory && resultClass == null && !compilation.getResultDistinct() &&
+            compilation.getExprGrouping() == null && compilation.getExprHaving() == null)
+        {
+            AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(compilation.getCandidateClass(),
+                clr);
+            try
+            {
+                aggregates = translator.translateAggregateResult(cmd);
+                if (aggregates == null)
+                {
+                    resultFields = translator.translateResult(cmd);
+                }
+            }
+            catch (FilterNotParsableException fnpe)
+            {
+                // Result needs the candidate objects, so evaluate it in memory
+            }
+        }
+
+        // The range can only be applied by Orient when it applies the filter and ordering too, and the rows Orient
+        // returns are the results, i.e the candidates themselves or a projection of them. Aggregates, distinct,
+        // grouped and result class results are worked out in memory from all candidates, and the range after them
+        String range = null;
+        boolean rangeInMemory = true;
+        boolean plainCandidates = (compilation.getExprResult() == null && resultClass == null &&
+            !compilation.getResultDistinct() && compilation.getExprGrouping() == null &&
+            compilation.getExprHaving() == null);
+        if (!filterInMemory && !orderingInMemory && (plainCandidates || resultFields != null))
+        {
+            range = getRangeClause();
+            rangeInMemory = (range == null);
+        }
+
+        List<ParameterExpression> boundParameters = translator.getBoundParameters();
+        if (aggregates != null && getRangeClause() == null)
+        {
+            if (filter == null && translator.isCandidateCount())
+            {
+                return new OrientQueryPlan(OrientQueryPlan.CLASS_COUNT, null, aggregates, false, false, false,
+                    boundParameters);
+            }
+            String[] projection = new String[aggregates.length];
+            for (int i = 0; i < aggregates.length; i++)
+            {
+                projection[i] = aggregates[i] + " as " + OrientQueryTranslator.getAggregateAlias(i);
+            }
+            return new OrientQueryPlan(OrientQueryPlan.AGGREGATE, createSQL(projection, filter, null, null), aggregates,
+                false, false, false, boundParameters);
         }
-        
-        Class candidateClass = compilation.getCandidateClass();
-        ((OrientStoreManager)ec.getStoreManager()).registerClassInOrient(cont, candidateClass);
-        
-        sqlQuery.append(candidateClass.getSimpleName());
+        else if (resultFields != null)
+        {
+            return new OrientQueryPlan(OrientQueryPlan.PROJECTION, createSQL(resultFields, filter, ordering, range),
+                resultFields, false, false, false, boundParameters);
+        }
+        return new OrientQueryPlan(OrientQueryPlan.CANDIDATES, createSQL(null, filter, ordering, range), null,
+            filterInMemory, orderingInMemory, rangeInMemory, boundParameters);
+    }
 
-        if (where != null)
+    /**
+     * Method to delete the objects matching the query. Where possible this is a single Orient "delete from ... where
+     * ..." command, so no candidate is loaded. That needs a filter that can be translated into Orient SQL, no range,
+     * and no per-object handling on delete, i.e no dependent fields, DeleteCallback or metadata listeners in the
+     * candidate classes. As lifecycle listeners registered with the PersistenceManager(Factory) would not be called,
+     * it is only done when enabled with the query extension "datanucleus.orient.bulkDeleteInDatastore". Otherwise
+     * the candidates are loaded and deleted one by one.
+     * @param parameters Input parameters
+     * @return Number of objects deleted
+     */
+    protected long performDeletePersistentAll(Map parameters)
+    {
+        if (candidateCollection != null || getRangeFromIncl() > 0 || getRangeToExcl() != Long.MAX_VALUE ||
+            !getBooleanExtensionProperty(EXTENSION_BULK_DELETE_IN_DATASTORE, false) ||
+            !OrientUtils.isDeletableInDatastore(ec, compilation.getCandidateClass(), subclasses))
         {
-            sqlQuery.append(" where ");
-            sqlQuery.append(parseExpression(where, parameters));
+            return super.performDeletePersistentAll(parameters);
+        }
 
+        OrientQueryTranslator translator = new OrientQueryTranslator(compilation, parameters, true);
+        StringBuffer clause = new StringBuffer();
+        try
+        {
+            String filter = translator.translateFilter();
+            if (filter != null)
+            {
+                clause.append(" where ").append(filter);
+            }
+        }
+        catch (FilterNotParsableException fnpe)
+        {
+            // Filter needs evaluating in memory, so the candidates have to be loaded
+            return super.performDeletePersistentAll(parameters);
         }
-        // TODO in memory
-        OQuery query = new OSQLSynchQuery(sqlQuery.toString());
 
-        return query;
+        return OrientUtils.executeBulkCommand(ec, "delete from ", clause.toString(),
+            translator.getBoundParameterValues(), compilation.getCandidateClass(), subclasses);
     }
 
-    private String parseOperator(Operator operator)
+    /**
+     * Method to perform a bulk update as a single Orient "update ... set ... where ..." command. Only assignments of
+     * literals and parameters and filters that can be translated into Orient SQL are supported. Changes not yet
+     * flushed are flushed before the command, and the objects of the candidate class are read again afterwards (see
+     * OrientUtils.executeBulkCommand).
+     * @param parameters Input parameters
+     * @return Number of objects updated
+     * @throws NucleusUserException if the update can't be expressed in Orient SQL
+     */
+    protected long performBulkUpdate(Map parameters)
     {
-        return operator.toString();
+        OrientQueryTranslator translator = new OrientQueryTranslator(compilation, parameters, true);
+        StringBuffer clause = new StringBuffer(" set ");
+        try
+        {
+            clause.append(translator.translateUpdate());
+            String filter = translator.translateFilter();
+            if (filter != null)
+            {
+                clause.append(" where ").append(filter);
+            }
+        }
+        catch (FilterNotParsableException fnpe)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.UpdateNotSupported", getSingleStringQuery(),
+                fnpe.getFilter()));
+        }
+
+        return OrientUtils.executeBulkCommand(ec, "update ", clause.toString(), translator.getBoundParameterValues(),
+            compilation.getCandidateClass(), subclasses);
     }
 
-    private String parseExpression(Expression exp, Map parameters)
+    /**
+     * Method to execute the query as an Orient SQL projection of fields of the candidate. The records are read through
+     * the underlying document database, so no candidate object is created. Each result is the value of the field
+     * when there is one result field, otherwise an Object[] of the values in the order of the result clause.
+     * @param cont The Orient database
+     * @param plan Translation of the query
+     * @param args Values to bind to the placeholders of the Orient SQL
+     * @return The results
+     */
+    private List performProjection(ODatabaseObjectTx cont, OrientQueryPlan plan, Object[] args)
     {
-        StringBuffer result = new StringBuffer();
-        if (exp instanceof PrimaryExpression)
+        String[] resultFields = plan.getResultNames();
+        List<ODocument> records = cont.getUnderlying().query(new OSQLSynchQuery<ODocument>(plan.getSQL()), args);
+        List results = new ArrayList(records.size());
+        Iterator<ODocument> iter = records.iterator();
+        while (iter.hasNext())
         {
-            boolean first = true;
-            for (String tuple : ((PrimaryExpression) exp).getTuples())
+            ODocument record = iter.next();
+            if (resultFields.length == 1)
             {
-                if (first)
-                {
-                    first = false;
-                }
-                else
+                results.add(record.field(resultFields[0]));
+            }
+            else
+            {
+                Object[] row = new Object[resultFields.length];
+                for (int i = 0; i < resultFields.length; i++)
                 {
-                    result.append(".");
+                    row[i] = record.field(resultFields[i]);
                 }
-                result.append(tuple);
+                results.add(row);
             }
-            return result.toString();
         }
-        else if (exp instanceof DyadicExpression)
+        return results;
+    }
+
+    /**
+     * Method to execute the query as Orient SQL aggregate functions, returning the single result row. Each result is
+     * the value of the aggregate when there is one aggregate, otherwise an Object[] of the values in the order of the
+     * result clause. A count of all candidates is taken from the number of records of the class.
+     * @param cont The Orient database
+     * @param plan Translation of the query
+     * @param args Values to bind to the placeholders of the Orient SQL
+     * @return The results
+     */
+    private List performAggregate(ODatabaseObjectTx cont, OrientQueryPlan plan, Object[] args)
+    {
+        String[] aggregates = plan.getResultNames();
+        Object[] values = new Object[aggregates.length];
+        if (plan.getType() == OrientQueryPlan.CLASS_COUNT)
         {
-//            result.append("(");
-            result.append(parseExpression(exp.getLeft(), parameters));
-            result.append(" ");
-            result.append(parseOperator(exp.getOperator()));
-            result.append(" ");
-            result.append(parseExpression(exp.getRight(), parameters));
-//            result.append(")");
-            return result.toString();
+            values[0] = Long.valueOf(cont.getUnderlying().countClass(compilation.getCandidateClass().getSimpleName()));
         }
-        else if (exp instanceof Literal)
+        else
         {
-            Object key = parameters.get(((Literal) exp).getLiteral());
-            if (key == null)
+            List<ODocument> records = cont.getUnderlying().query(new OSQLSynchQuery<ODocument>(plan.getSQL()), args);
+            ODocument record = (records.isEmpty() ? null : records.get(0));
+            for (int i = 0; i < values.length; i++)
             {
-                return "null";
+                Object value = (record != null ? record.field(OrientQueryTranslator.getAggregateAlias(i)) : null);
+                values[i] = OrientQueryTranslator.getAggregateResultValue(aggregates[i], value);
+            }
+        }
+
+        List results = new ArrayList(1);
+        results.add(values.length == 1 ? values[0] : values);
+        return results;
+    }
+
+    /**
+     * Method to create the Orient SQL query for the candidates.
+     * @param projection Orient SQL projection (or null to select the records)
+     * @param filter Orient SQL "where" condition (or null)
+     * @param ordering Orient SQL "order by" clause (or null)
+     * @param range Orient SQL "skip"/"limit" clause (or null)
+     * @return The Orient SQL
+     */
+    private String createSQL(String[] projection, String filter, String ordering, String range)
+    {
+        StringBuffer sqlQuery = new StringBuffer("select ");
+        if (projection != null)
+        {
+            for (int i = 0; i < projection.length; i++)
+            {
+                if (i > 0)
+                {
+                    sqlQuery.append(", ");
+                }
+                sqlQuery.append(projection[i]);
             }
-            Object val = parameters.get(key);
-            return objectToStringValue(val);
-        } else if (exp instanceof ParameterExpression)
+            sqlQuery.append(" ");
+        }
+        sqlQuery.append("from ");
+        if (this.subclasses)
+        {
+//            sqlQuery.append("@");//TODO
+        }
+        sqlQuery.append(compilation.getCandidateClass().getSimpleName());
+
+        if (filter != null)
         {
-            String paramName = exp.getSymbol().getQualifiedName();
-           
-            Object val = parameters.get(paramName);
-            return objectToStringValue(val);
+            sqlQuery.append(" where ").append(filter);
         }
-        else if (exp instanceof SubqueryExpression)
+        if (ordering != null)
         {
-            // TODO
-            throw new NucleusUserException("unsupported expression: " + exp);
+            sqlQuery.append(" order by ").append(ordering);
         }
-        else
+        if (range != null)
         {
-            throw new NucleusUserException("unsupported expression: " + exp);
+            sqlQuery.append(" ").append(range);
         }
+        return sqlQuery.toString();
     }
 
-    private String objectToStringValue(Object val)
+    /**
+     * Accessor for the Orient SQL "skip"/"limit" clause for the range of the query.
+     * @return The clause, or null if the query has no range
+     */
+    private String getRangeClause()
     {
-        if (val == null)
+        long fromIncl = getRangeFromIncl();
+        long toExcl = getRangeToExcl();
+        if (fromIncl <= 0 && toExcl == Long.MAX_VALUE)
         {
-            return "null";
+            return null;
         }
-        else if (val.getClass().isPrimitive())
+
+        StringBuffer str = new StringBuffer();
+        if (fromIncl > 0)
         {
-            return val.toString();
+            str.append("skip ").append(fromIncl);
+        }
+        if (toExcl != Long.MAX_VALUE)
+        {
+            if (str.length() > 0)
+            {
+                str.append(" ");
+            }
+            str.append("limit ").append(toExcl - Math.max(fromIncl, 0));
         }
-        return "'" + val + "'";
+        return str.toString();
     }
 }
@@ -17,17 +17,28 @@ Contributors:
  **********************************************************************/
 package org.datanucleus.store.orient.query;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.query.evaluator.JPQLEvaluator;
+import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.connection.ManagedConnection;
 import org.datanucleus.store.orient.OrientStoreManager;
+import org.datanucleus.store.orient.OrientUtils;
+import org.datanucleus.store.orient.exceptions.FilterNotParsableException;
 import org.datanucleus.store.query.AbstractJPQLQuery;
 import org.datanucleus.util.Localiser;
+import org.datanucleus.util.NucleusLogger;
 
-
+import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 /**
  * representation of a JPQL query for use by DataNucleus.
@@ -73,85 +84,143 @@ public class JPQLQuery extends AbstractJPQLQuery
 
         if (candidateCollection != null && candidateCollection.isEmpty())
         {
-            return Collections.EMPTY_LIST;
+            return (type == SELECT ? Collections.EMPTY_LIST : Long.valueOf(0));
+        }
+
+        if (type == BULK_UPDATE)
+        {
+            return Long.valueOf(performBulkUpdate(parameters));
+        }
+        else if (type == BULK_DELETE && candidateCollection == null &&
+            OrientUtils.isDeletableInDatastore(ec, compilation.getCandidateClass(), subclasses))
+        {
+            OrientQueryTranslator translator = new OrientQueryTranslator(compilation, parameters, true);
+            try
+            {
+                String filter = translator.translateFilter();
+                return Long.valueOf(OrientUtils.executeBulkCommand(ec, "delete from ",
+                    (filter != null ? " where " + filter : ""), translator.getBoundParameterValues(),
+                    compilation.getCandidateClass(), subclasses));
+            }
+            catch (FilterNotParsableException fnpe)
+            {
+                // Filter needs evaluating in memory, so the candidates have to be loaded
+            }
         }
 
         boolean inMemory = evaluateInMemory();
         ManagedConnection mconn = ec.getStoreManager().getConnection(ec);
         try
         {
-//            ObjectContainer cont = (ObjectContainer) mconn.getConnection();
-//
-//            // Execute the query
-//            long startTime = 0;
-//            if (NucleusLogger.QUERY.isDebugEnabled())
-//            {
-//                startTime = System.currentTimeMillis();
-//                NucleusLogger.QUERY.debug(LOCALISER.msg("021046", "JPQL", getSingleStringQuery(), null));
-//            }
-//            List candidates = null;
-//            boolean filterInMemory = false;
-//            boolean orderingInMemory = false;
-//            if (candidateCollection == null)
-//            {
-//                // Create the SODA query, optionally with the candidate and filter restrictions
-//                Query query = createSODAQuery(cont, compilation, parameters, inMemory);
-//                candidates = query.execute();
-//                if (inMemory)
-//                {
-//                    filterInMemory = true;
-//                    orderingInMemory = true;
-//                }
-//            }
-//            else
-//            {
-//                candidates = (List)candidateCollection;
-//                filterInMemory = true;
-//                orderingInMemory = true;
-//            }
-//
-//            // Apply any restrictions to the results (that we can't use in the input SODA query)
-//            JavaQueryEvaluator resultMapper =
-//                new JPQLEvaluator(this, candidates, compilation, parameters, clr);
-//            Collection results = resultMapper.execute(filterInMemory, orderingInMemory, true, true, true);
-//
-//            if (NucleusLogger.QUERY.isDebugEnabled())
-//            {
-//                NucleusLogger.QUERY.debug(LOCALISER.msg("021074", "JPQL", "" + (System.currentTimeMillis() - startTime)));
-//            }
-//
-//            // Assign StateManagers to any returned objects
-//            Iterator iter = results.iterator();
-//            while (iter.hasNext())
-//            {
-//                Object obj = iter.next();
-//                AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(obj.getClass(), clr);
-//                OrientUtils.prepareOrientObjectForUse(obj, ec, cont, cmd, (OrientStoreManager)ec.getStoreManager());
-//            }
-//
-//            if (type == BULK_DELETE)
-//            {
-//                iter = results.iterator();
-//                while (iter.hasNext())
-//                {
-//                    Object obj = iter.next();
-//                    ec.deleteObject(obj);
-//                }
-//                return Long.valueOf(results.size());
-//            }
-//            else if (type == BULK_UPDATE)
-//            {
-//                throw new NucleusException("Bulk Update is not yet supported");
-//            }
-//            else
-//            {
-//                return results;
+            ODatabaseObjectTx cont = (ODatabaseObjectTx) mconn.getConnection();
+
+            // Execute the query
+            long startTime = System.currentTimeMillis();
+            if (NucleusLogger.QUERY.isDebugEnabled())
+            {
+                NucleusLogger.QUERY.debug(LOCALISER.msg("021046", "JPQL", getSingleStringQuery(), null));
+            }
+            List candidates = null;
+            boolean filterInMemory = false;
+            boolean orderingInMemory = false;
+            if (candidateCollection == null)
+            {
+                // Create the Orient SQL query, optionally with the candidate and filter restrictions
+                Class candidateClass = compilation.getCandidateClass();
+                ((OrientStoreManager) ec.getStoreManager()).registerClassWithContainer(cont, candidateClass);
+
+                OrientQueryTranslator translator = new OrientQueryTranslator(compilation, parameters, true);
+                StringBuffer sql = new StringBuffer("select from ");
+                sql.append(translator.getCandidateClassName());
+                if (!inMemory)
+                {
+                    try
+                    {
+                        String filter = translator.translateFilter();
+                        if (filter != null)
+                        {
+                            sql.append(" where ").append(filter);
+                        }
+                    }
+                    catch (FilterNotParsableException fnpe)
+                    {
+                        inMemory = true;
+                    }
+                }
+                candidates = cont.query(new OSQLSynchQuery(sql.toString()), translator.getBoundParameterValues());
+                if (inMemory)
+                {
+                    filterInMemory = true;
+                    orderingInMemory = true;
+                }
+            }
+            else
+            {
+                candidates = (List) candidateCollection;
+                filterInMemory = true;
+                orderingInMemory = true;
+            }
+
+            // Apply any restrictions to the results (that we can't use in the input Orient query)
+            JavaQueryEvaluator resultMapper = new JPQLEvaluator(this, candidates, compilation, parameters, clr);
+            Collection results = resultMapper.execute(filterInMemory, orderingInMemory, true, true, true);
+
+            if (NucleusLogger.QUERY.isDebugEnabled())
+            {
+                NucleusLogger.QUERY.debug(LOCALISER.msg("021074", "JPQL", "" + (System.currentTimeMillis() - startTime)));
+            }
+
+            // Assign StateManagers to any returned objects
+            Iterator iter = results.iterator();
+            while (iter.hasNext())
+            {
+                Object obj = iter.next();
+                AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(obj.getClass(), clr);
+                OrientUtils.prepareOrientObjectForUse(obj, ec, cont, cmd, (OrientStoreManager) ec.getStoreManager());
+            }
+
+            if (type == BULK_DELETE)
+            {
+                ec.deleteObjects(results.toArray());
+                return Long.valueOf(results.size());
+            }
+            return results;
         }
         finally
         {
             mconn.release();
         }
-        return null;//TODO
     }
 
+    /**
+     * Method to perform a bulk update as a single Orient "update ... set ... where ..." command. Only assignments of
+     * literals and parameters and filters that can be translated into Orient SQL are supported. Changes not yet
+     * flushed are flushed before the command, and the objects of the candidate class are read again afterwards (see
+     * OrientUtils.executeBulkCommand).
+     * @param parameters Input parameters
+     * @return Number of objects updated
+     * @throws NucleusUserException if the update can't be expressed in Orient SQL
+     */
+    protected long performBulkUpdate(Map parameters)
+    {
+        OrientQueryTranslator translator = new OrientQueryTranslator(compilation, parameters, true);
+        StringBuffer clause = new StringBuffer(" set ");
+        try
+        {
+            clause.append(translator.translateUpdate());
+            String filter = translator.translateFilter();
+            if (filter != null)
+            {
+                clause.append(" where ").append(filter);
+            }
+        }
+        catch (FilterNotParsableException fnpe)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.UpdateNotSupported", getSingleStringQuery(),
+                fnpe.getFilter()));
+        }
+
+        return OrientUtils.executeBulkCommand(ec, "update ", clause.toString(), translator.getBoundParameterValues(),
+            compilation.getCandidateClass(), subclasses);
+    }
 }
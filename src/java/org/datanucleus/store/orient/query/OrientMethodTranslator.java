@@ -0,0 +1,38 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient.query;
+
+import org.datanucleus.query.expression.InvokeExpression;
+
+/**
+ * Translator of a method invoked in a JDOQL/JPQL query (such as String.startsWith or Collection.size) into Orient SQL.
+ * Translators are registered by method name with OrientQueryTranslator.
+ */
+public interface OrientMethodTranslator
+{
+    /**
+     * Method to translate an invocation of the method.
+     * @param translator Translator of the query, for translating the arguments
+     * @param target Orient SQL for the object the method is invoked on
+     * @param invokeExpr The invocation
+     * @return The Orient SQL
+     * @throws org.datanucleus.store.orient.exceptions.FilterNotParsableException if the invocation can't be
+     *     expressed in Orient SQL
+     */
+    String translate(OrientQueryTranslator translator, String target, InvokeExpression invokeExpr);
+}
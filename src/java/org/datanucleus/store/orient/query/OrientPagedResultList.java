@@ -0,0 +1,269 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient.query;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.store.orient.OrientStoreManager;
+import org.datanucleus.util.Localiser;
+
+import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+
+/**
+ * Results of an Orient SQL query read one page at a time, using "skip" and "limit", so that only the page holding the
+ * row last accessed is kept in memory. Iterating forwards reads each page once. Pages are read as documents, and
+ * when objects are wanted each page is turned into objects that the database handle doesn't keep track of (except
+ * for objects it already had), so the handle doesn't grow with the number of rows read. The size is only worked out
+ * when asked for, by an Orient SQL count of the same records where the query allows it. The database has to stay
+ * open while the results are used, so the list is closed along with the connection it was read through, after which
+ * it can't be used any more.
+ * Can be used by several threads: the page last read is published as a whole, so reading a row of it needs no
+ * locking, while reading a page from Orient is done by one thread at a time, since the database handle isn't safe for
+ * concurrent use.
+ */
+public class OrientPagedResultList extends AbstractList
+{
+    /** Localiser for messages. */
+    protected static final Localiser LOCALISER_ORIENT = Localiser.getInstance(
+        "org.datanucleus.store.orient.Localisation", OrientStoreManager.class.getClassLoader());
+
+    /** The Orient database, or null once closed. */
+    private volatile ODatabaseObjectTx cont;
+
+    /** The Orient SQL, without any "skip" or "limit". */
+    private final String sql;
+
+    /** Orient SQL counting the rows, or null if they can only be counted by reading them. */
+    private final String countSQL;
+
+    private final int pageSize;
+
+    /** Whether to read documents (through the underlying document database) rather than objects. */
+    private final boolean documents;
+
+    /** Lock held while reading a page, or counting the rows, from Orient. */
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    /** The page last read. */
+    private volatile Page page = new Page(-1, Collections.EMPTY_LIST);
+
+    /** Number of rows, or -1 if not known yet. */
+    private volatile int size = -1;
+
+    /**
+     * Rows of a page, with the index of the first of them.
+     */
+    private static class Page
+    {
+        final int start;
+
+        final List rows;
+
+        Page(int start, List rows)
+        {
+            this.start = start;
+            this.rows = rows;
+        }
+
+        boolean contains(int index)
+        {
+            return start >= 0 && index >= start && index < start + rows.size();
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param cont The Orient database
+     * @param sql The Orient SQL query, which mustn't have a "skip" or "limit" of its own
+     * @param countSQL Orient SQL query counting the rows, or null if they can only be counted by reading them
+     * @param pageSize Number of rows to read at a time
+     * @param documents Whether to read documents rather than objects
+     */
+    public OrientPagedResultList(ODatabaseObjectTx cont, String sql, String countSQL, int pageSize, boolean documents)
+    {
+        this.cont = cont;
+        this.sql = sql;
+        this.countSQL = countSQL;
+        this.pageSize = pageSize;
+        this.documents = documents;
+    }
+
+    /**
+     * Method to close the list, when the connection it reads through is closed. The database handle goes back to the
+     * pool then, so may be in use by another transaction, and no more rows can be read.
+     */
+    public void close()
+    {
+        cont = null;
+    }
+
+    /**
+     * Accessor for the database to read rows from.
+     * @return The database
+     * @throws NucleusUserException if the list has been closed
+     */
+    private ODatabaseObjectTx getDatabase()
+    {
+        ODatabaseObjectTx db = cont;
+        if (db == null)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.PagedResultsClosed", sql));
+        }
+        return db;
+    }
+
+    public Object get(int index)
+    {
+        Page current = getPage(index);
+        if (current == null)
+        {
+            throw new IndexOutOfBoundsException("" + index);
+        }
+        return current.rows.get(index - current.start);
+    }
+
+    /**
+     * Method to return whether there is a row at an index, reading the page holding it if necessary. Unlike
+     * comparing with size() this doesn't need the number of rows.
+     * @param index The index
+     * @return Whether there is a row at the index
+     */
+    public boolean exists(int index)
+    {
+        return getPage(index) != null;
+    }
+
+    /**
+     * Accessor for the page holding the row at an index, reading it if it isn't the page last read.
+     * @param index The index
+     * @return The page, or null if there is no row at the index
+     */
+    private Page getPage(int index)
+    {
+        if (index < 0 || (size >= 0 && index >= size))
+        {
+            return null;
+        }
+        Page current = page;
+        if (current.contains(index))
+        {
+            return current;
+        }
+
+        readLock.lock();
+        try
+        {
+            // Another thread may have read the page while this one waited
+            current = page;
+            if (current.contains(index))
+            {
+                return current;
+            }
+            if (size >= 0 && index >= size)
+            {
+                return null;
+            }
+
+            ODatabaseObjectTx db = getDatabase();
+            int start = (index / pageSize) * pageSize;
+            String pageSQL = sql + " skip " + start + " limit " + pageSize;
+            List rows = db.getUnderlying().query(new OSQLSynchQuery<ODocument>(pageSQL));
+            if (!documents)
+            {
+                rows = getObjects(db, rows);
+            }
+            current = new Page(start, rows);
+            page = current;
+            if (rows.size() < pageSize)
+            {
+                // Last page, so now the size is known
+                size = start + rows.size();
+            }
+            return (current.contains(index) ? current : null);
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Convenience method to turn the documents of a page into objects. Objects are only kept track of by the database
+     * handle while they are created, except those it already had, so that the handle holds no more than it did.
+     * @param db The database
+     * @param docs The documents
+     * @return The objects, in the order of the documents
+     */
+    private static List getObjects(ODatabaseObjectTx db, List docs)
+    {
+        List objects = new ArrayList(docs.size());
+        for (int i = 0; i < docs.size(); i++)
+        {
+            ODocument doc = (ODocument) docs.get(i);
+            boolean known = db.existsUserObjectByRID(doc.getIdentity());
+            Object obj = db.getUserObjectByRecord(doc, null);
+            if (!known)
+            {
+                db.unregisterPojo(obj, doc);
+            }
+            objects.add(obj);
+        }
+        return objects;
+    }
+
+    public int size()
+    {
+        if (size < 0)
+        {
+            if (countSQL != null)
+            {
+                // Count the records in Orient rather than reading them
+                List<ODocument> records;
+                readLock.lock();
+                try
+                {
+                    records = getDatabase().getUnderlying().query(new OSQLSynchQuery<ODocument>(countSQL));
+                }
+                finally
+                {
+                    readLock.unlock();
+                }
+                Object[] values = (records.isEmpty() ? null : records.get(0).fieldValues());
+                size = (values != null && values.length > 0 && values[0] instanceof Number ?
+                    ((Number) values[0]).intValue() : 0);
+            }
+            else
+            {
+                // Read forwards, a page at a time, until the last page
+                int index = Math.max(page.start, 0);
+                while (exists(index))
+                {
+                    index += pageSize;
+                }
+            }
+        }
+        return size;
+    }
+}
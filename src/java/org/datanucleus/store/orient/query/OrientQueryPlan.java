@@ -0,0 +1,132 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient.query;
+
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.query.expression.ParameterExpression;
+
+/**
+ * Translation of a query into Orient SQL, as kept by OrientStoreManager for reuse by later executions of the same
+ * query. The Orient SQL has a "?" placeholder for each parameter, bound to the parameter values when executing, and
+ * the plan records which parts of the query are left to be evaluated in memory.
+ */
+public class OrientQueryPlan
+{
+    /** Plan selecting the candidate objects. */
+    public static final int CANDIDATES = 0;
+
+    /** Plan selecting a projection of fields of the candidates. */
+    public static final int PROJECTION = 1;
+
+    /** Plan computing aggregates of the candidates. */
+    public static final int AGGREGATE = 2;
+
+    /** Plan counting all records of the candidate class. */
+    public static final int CLASS_COUNT = 3;
+
+    private final int type;
+
+    private final String sql;
+
+    /** Names of the projected fields, or the aggregate functions. */
+    private final String[] resultNames;
+
+    private final boolean filterInMemory;
+
+    private final boolean orderingInMemory;
+
+    private final boolean rangeInMemory;
+
+    /** Parameters bound to the placeholders of the Orient SQL, in order. */
+    private final List<ParameterExpression> boundParameters;
+
+    /**
+     * Constructor.
+     * @param type Type of plan
+     * @param sql The Orient SQL (null for CLASS_COUNT)
+     * @param resultNames Names of the projected fields, or the aggregate functions (or null)
+     * @param filterInMemory Whether the filter is evaluated in memory
+     * @param orderingInMemory Whether the ordering is evaluated in memory
+     * @param rangeInMemory Whether the range is evaluated in memory
+     * @param boundParameters Parameters bound to the placeholders of the Orient SQL, in order
+     */
+    public OrientQueryPlan(int type, String sql, String[] resultNames, boolean filterInMemory,
+            boolean orderingInMemory, boolean rangeInMemory, List<ParameterExpression> boundParameters)
+    {
+        this.type = type;
+        this.sql = sql;
+        this.resultNames = resultNames;
+        this.filterInMemory = filterInMemory;
+        this.orderingInMemory = orderingInMemory;
+        this.rangeInMemory = rangeInMemory;
+        this.boundParameters = boundParameters;
+    }
+
+    public int getType()
+    {
+        return type;
+    }
+
+    public String getSQL()
+    {
+        return sql;
+    }
+
+    public String[] getResultNames()
+    {
+        return resultNames;
+    }
+
+    public boolean isFilterInMemory()
+    {
+        return filterInMemory;
+    }
+
+    public boolean isOrderingInMemory()
+    {
+        return orderingInMemory;
+    }
+
+    public boolean isRangeInMemory()
+    {
+        return rangeInMemory;
+    }
+
+    /**
+     * Accessor for the values to bind to the placeholders of the Orient SQL for an execution.
+     * @param parameters Input parameters of the execution
+     * @return The values, or null if a parameter has a value that can't be bound (e.g null, which Orient SQL
+     *     compares with "is"), in which case the query has to be translated again for these parameters
+     */
+    public Object[] getParameterValues(Map parameters)
+    {
+        Object[] values = new Object[boundParameters.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            Object value = OrientQueryTranslator.getParameterValue(parameters, boundParameters.get(i));
+            if (!OrientQueryTranslator.isBindable(value))
+            {
+                return null;
+            }
+            values[i] = OrientQueryTranslator.getBindValue(value);
+        }
+        return values;
+    }
+}
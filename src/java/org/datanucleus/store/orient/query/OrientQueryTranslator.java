@@ -0,0 +1,869 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.query.compiler.QueryCompilation;
+import org.datanucleus.query.expression.DyadicExpression;
+import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.Expression.Operator;
+import org.datanucleus.query.expression.InvokeExpression;
+import org.datanucleus.query.expression.Literal;
+import org.datanucleus.query.expression.OrderExpression;
+import org.datanucleus.query.expression.ParameterExpression;
+import org.datanucleus.query.expression.PrimaryExpression;
+import org.datanucleus.store.orient.OrientUtils;
+import org.datanucleus.store.orient.exceptions.FilterNotParsableException;
+import org.datanucleus.store.orient.exceptions.OrderingMalformedException;
+
+/**
+ * Translator of the generic compilation of a JDOQL or JPQL query into Orient SQL. Handles field references
+ * (dropping the candidate alias), literals, parameters, comparisons and boolean operators, methods registered with
+ * an OrientMethodTranslator, and the assignments of a bulk update. Anything else throws a FilterNotParsableException,
+ * so the caller can evaluate that part in memory or fall back to processing each object.
+ */
+public class OrientQueryTranslator
+{
+    /** Translators of the methods that can be invoked in Orient SQL, keyed by method name. */
+    private static final Map<String, OrientMethodTranslator> methodTranslators =
+        new HashMap<String, OrientMethodTranslator>();
+
+    static
+    {
+        registerMethodTranslator("startsWith", new LikeMethodTranslator(false, true));
+        registerMethodTranslator("endsWith", new LikeMethodTranslator(true, false));
+        registerMethodTranslator("matches", new OperatorMethodTranslator("matches"));
+        registerMethodTranslator("contains", new ContainsMethodTranslator());
+        registerMethodTranslator("isEmpty", new OrientMethodTranslator()
+        {
+            public String translate(OrientQueryTranslator translator, String target, InvokeExpression invokeExpr)
+            {
+                checkArguments(invokeExpr, 0);
+                // A collection field that was never set is stored as null, which is empty too
+                return "(" + target + " is null or " + target + ".size() = 0)";
+            }
+        });
+        registerMethodTranslator("size", new FunctionMethodTranslator("size", 0));
+        registerMethodTranslator("length", new FunctionMethodTranslator("length", 0));
+        registerMethodTranslator("toLowerCase", new FunctionMethodTranslator("toLowerCase", 0));
+        registerMethodTranslator("toUpperCase", new FunctionMethodTranslator("toUpperCase", 0));
+        registerMethodTranslator("indexOf", new FunctionMethodTranslator("indexOf", 1));
+    }
+
+    /**
+     * Method to register the translator of a method into Orient SQL, replacing any translator already registered for
+     * a method of that name.
+     * @param methodName Name of the method, as invoked in the query
+     * @param methodTranslator The translator
+     */
+    public static void registerMethodTranslator(String methodName, OrientMethodTranslator methodTranslator)
+    {
+        synchronized (methodTranslators)
+        {
+            methodTranslators.put(methodName, methodTranslator);
+        }
+    }
+
+    /**
+     * Accessor for the translator of a method into Orient SQL.
+     * @param methodName Name of the method
+     * @return The translator, or null if the method can't be translated
+     */
+    public static OrientMethodTranslator getMethodTranslator(String methodName)
+    {
+        synchronized (methodTranslators)
+        {
+            return methodTranslators.get(methodName);
+        }
+    }
+
+    /** The compilation of the query. */
+    protected final QueryCompilation compilation;
+
+    /** Input parameters of the query, keyed by name or by position. */
+    protected final Map parameters;
+
+    /** Whether parameters are written as "?" placeholders rather than as literals, where their value allows. */
+    protected final boolean bindParameters;
+
+    /** Parameters written as placeholders so far, in order. */
+    protected final List<ParameterExpression> boundParameters = new ArrayList<ParameterExpression>();
+
+    /** Whether the Orient SQL written so far depends on the values of the parameters. */
+    protected boolean valueDependent = false;
+
+    /**
+     * Constructor.
+     * @param compilation Generic compilation of the query
+     * @param parameters Input parameters
+     */
+    public OrientQueryTranslator(QueryCompilation compilation, Map parameters)
+    {
+        this(compilation, parameters, false);
+    }
+
+    /**
+     * Constructor.
+     * @param compilation Generic compilation of the query
+     * @param parameters Input parameters
+     * @param bindParameters Whether to write parameters as "?" placeholders, so the Orient SQL can be reused with
+     *     other parameter values
+     */
+    public OrientQueryTranslator(QueryCompilation compilation, Map parameters, boolean bindParameters)
+    {
+        this.compilation = compilation;
+        this.parameters = parameters;
+        this.bindParameters = bindParameters;
+    }
+
+    /**
+     * Accessor for the parameters written as "?" placeholders, in the order of the placeholders.
+     * @return The parameters
+     */
+    public List<ParameterExpression> getBoundParameters()
+    {
+        return boundParameters;
+    }
+
+    /**
+     * Accessor for the values to bind to the "?" placeholders written so far, for the parameter values given.
+     * @return The values, in the order of the placeholders
+     */
+    public Object[] getBoundParameterValues()
+    {
+        Object[] values = new Object[boundParameters.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = getBindValue(getParameterValue(boundParameters.get(i)));
+        }
+        return values;
+    }
+
+    /**
+     * Accessor for whether the Orient SQL depends on the values of the parameters (e.g a parameter was written as a
+     * literal), so it can't be reused for other parameter values.
+     * @return Whether the translation depends on the parameter values
+     */
+    public boolean isValueDependent()
+    {
+        return valueDependent;
+    }
+
+    /**
+     * Accessor for the name of the Orient class of the candidate.
+     * @return The Orient class name
+     */
+    public String getCandidateClassName()
+    {
+        return compilation.getCandidateClass().getSimpleName();
+    }
+
+    /**
+     * Method to translate the filter of the query into an Orient SQL "where" condition.
+     * @return The condition, or null if the query has no filter
+     * @throws FilterNotParsableException if the filter can't be expressed in Orient SQL
+     */
+    public String translateFilter()
+    {
+        Expression filter = compilation.getExprFilter();
+        if (filter == null)
+        {
+            return null;
+        }
+
+        int numberBound = boundParameters.size();
+        try
+        {
+            return translate(filter);
+        }
+        catch (FilterNotParsableException fnpe)
+        {
+            // None of the filter is used, so neither are its placeholders
+            boundParameters.subList(numberBound, boundParameters.size()).clear();
+            throw fnpe;
+        }
+    }
+
+    /**
+     * Method to translate the ordering of the query into an Orient SQL "order by" clause. Only orderings by fields
+     * can be translated.
+     * @return The ordering clause (without "order by"), or null if the query has no ordering
+     * @throws FilterNotParsableException if an ordering can't be expressed in Orient SQL
+     * @throws OrderingMalformedException if an ordering has an unknown direction
+     */
+    public String translateOrdering()
+    {
+        Expression[] orderExprs = compilation.getExprOrdering();
+        if (orderExprs == null || orderExprs.length == 0)
+        {
+            return null;
+        }
+
+        StringBuffer str = new StringBuffer();
+        for (int i = 0; i < orderExprs.length; i++)
+        {
+            OrderExpression orderExpr = (OrderExpression) orderExprs[i];
+            if (!(orderExpr.getLeft() instanceof PrimaryExpression))
+            {
+                throw new FilterNotParsableException(orderExpr.toString());
+            }
+
+            if (i > 0)
+            {
+                str.append(", ");
+            }
+            str.append(translateField((PrimaryExpression) orderExpr.getLeft()));
+
+            String sortOrder = orderExpr.getSortOrder();
+            if (sortOrder == null || sortOrder.equalsIgnoreCase("ascending") || sortOrder.equalsIgnoreCase("asc"))
+            {
+                str.append(" asc");
+            }
+            else if (sortOrder.equalsIgnoreCase("descending") || sortOrder.equalsIgnoreCase("desc"))
+            {
+                str.append(" desc");
+            }
+            else
+            {
+                throw new OrderingMalformedException(sortOrder);
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Method to translate the result clause of the query into the fields of an Orient SQL projection. Only results
+     * that are fields of the candidate stored as is in its record (primitives, wrappers, String, Date, byte[]) can be
+     * translated, since Orient returns the raw record values and not objects.
+     * @param cmd MetaData for the candidate class
+     * @return Names of the projected fields, in the order of the result clause, or null if the query has no result
+     * @throws FilterNotParsableException if a result can't be expressed as an Orient SQL projection
+     */
+    public String[] translateResult(AbstractClassMetaData cmd)
+    {
+        Expression[] resultExprs = compilation.getExprResult();
+        if (resultExprs == null || resultExprs.length == 0)
+        {
+            return null;
+        }
+
+        String[] fieldNames = new String[resultExprs.length];
+        for (int i = 0; i < resultExprs.length; i++)
+        {
+            if (!(resultExprs[i] instanceof PrimaryExpression))
+            {
+                throw new FilterNotParsableException(resultExprs[i].toString());
+            }
+
+            String fieldName = translateField((PrimaryExpression) resultExprs[i]);
+            AbstractMemberMetaData mmd = (fieldName.indexOf('.') < 0 ? cmd.getMetaDataForMember(fieldName) : null);
+            if (mmd == null || !OrientUtils.isStorableInRecord(cmd, new int[] {mmd.getAbsoluteFieldNumber()}))
+            {
+                throw new FilterNotParsableException(resultExprs[i].toString());
+            }
+            fieldNames[i] = fieldName;
+        }
+        return fieldNames;
+    }
+
+    /**
+     * Accessor for the name given to an aggregate in the Orient SQL projection. Orient would otherwise name each
+     * column after its function, so that two sums (say) would share a column.
+     * @param position Position of the aggregate in the result clause
+     * @return The column name
+     */
+    public static String getAggregateAlias(int position)
+    {
+        return "agg" + position;
+    }
+
+    /**
+     * Method to translate a result clause made only of aggregates (count, sum, min, max, avg) into the Orient SQL
+     * aggregate functions computing them. Aggregates have to be of the candidate itself or of fields stored as is in
+     * its record.
+     * @param cmd MetaData for the candidate class
+     * @return The Orient SQL aggregate functions, in the order of the result clause, or null if the result clause
+     *     isn't made only of aggregates
+     * @throws FilterNotParsableException if an aggregate can't be expressed in Orient SQL
+     */
+    public String[] translateAggregateResult(AbstractClassMetaData cmd)
+    {
+        Expression[] resultExprs = compilation.getExprResult();
+        if (resultExprs == null || resultExprs.length == 0)
+        {
+            return null;
+        }
+        for (int i = 0; i < resultExprs.length; i++)
+        {
+            if (getAggregateFunction(resultExprs[i]) == null)
+            {
+                return null;
+            }
+        }
+
+        String[] functions = new String[resultExprs.length];
+        for (int i = 0; i < resultExprs.length; i++)
+        {
+            InvokeExpression invokeExpr = (InvokeExpression) resultExprs[i];
+            String function = getAggregateFunction(invokeExpr);
+            List args = invokeExpr.getArguments();
+            if (args == null || args.size() != 1 || !(args.get(0) instanceof PrimaryExpression))
+            {
+                throw new FilterNotParsableException(invokeExpr.toString());
+            }
+
+            PrimaryExpression argExpr = (PrimaryExpression) args.get(0);
+            if (isCandidate(argExpr))
+            {
+                // Only count applies to the candidate itself
+                if (!function.equals("count"))
+                {
+                    throw new FilterNotParsableException(invokeExpr.toString());
+                }
+                functions[i] = "count(*)";
+            }
+            else
+            {
+                String fieldName = translateField(argExpr);
+                AbstractMemberMetaData mmd = (fieldName.indexOf('.') < 0 ? cmd.getMetaDataForMember(fieldName) : null);
+                if (mmd == null || !OrientUtils.isStorableInRecord(cmd, new int[] {mmd.getAbsoluteFieldNumber()}))
+                {
+                    throw new FilterNotParsableException(invokeExpr.toString());
+                }
+                functions[i] = function + "(" + fieldName + ")";
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * Method to convert the value of an aggregate returned by Orient into the type JDOQL/JPQL defines for it: Long for
+     * count and for the sum of integral values, Double for avg and for the sum of floating point values, and the type
+     * of the field for min and max.
+     * @param aggregate The Orient SQL aggregate function, as output by translateAggregateResult
+     * @param value The value returned by Orient
+     * @return The value of the aggregate
+     */
+    public static Object getAggregateResultValue(String aggregate, Object value)
+    {
+        String function = aggregate.substring(0, aggregate.indexOf('('));
+        if (function.equals("count"))
+        {
+            return Long.valueOf(value instanceof Number ? ((Number) value).longValue() : 0);
+        }
+        else if (!(value instanceof Number))
+        {
+            return value;
+        }
+        else if (function.equals("avg"))
+        {
+            return Double.valueOf(((Number) value).doubleValue());
+        }
+        else if (function.equals("sum"))
+        {
+            if (value instanceof Double || value instanceof Float)
+            {
+                return Double.valueOf(((Number) value).doubleValue());
+            }
+            return Long.valueOf(((Number) value).longValue());
+        }
+        return value;
+    }
+
+    /**
+     * Accessor for whether the result clause is a single count of the candidates, as can be answered from the number
+     * of records of the class when there is no filter.
+     * @return Whether the result is "count(this)"
+     */
+    public boolean isCandidateCount()
+    {
+        Expression[] resultExprs = compilation.getExprResult();
+        if (resultExprs == null || resultExprs.length != 1 || !"count".equals(getAggregateFunction(resultExprs[0])))
+        {
+            return false;
+        }
+        List args = ((InvokeExpression) resultExprs[0]).getArguments();
+        return args != null && args.size() == 1 && args.get(0) instanceof PrimaryExpression &&
+            isCandidate((PrimaryExpression) args.get(0));
+    }
+
+    /**
+     * Accessor for the Orient SQL function of an aggregate.
+     * @param exp The expression
+     * @return The function (lowercase), or null if the expression isn't an aggregate
+     */
+    protected String getAggregateFunction(Expression exp)
+    {
+        if (!(exp instanceof InvokeExpression) || exp.getLeft() != null)
+        {
+            return null;
+        }
+        String method = ((InvokeExpression) exp).getOperation().toLowerCase();
+        if (method.equals("count") || method.equals("sum") || method.equals("min") || method.equals("max") ||
+            method.equals("avg"))
+        {
+            return method;
+        }
+        return null;
+    }
+
+    /**
+     * Accessor for whether a reference is to the candidate itself (its alias, "this" in JDOQL).
+     * @param primExpr The reference
+     * @return Whether it refers to the candidate
+     */
+    protected boolean isCandidate(PrimaryExpression primExpr)
+    {
+        List<String> tuples = primExpr.getTuples();
+        return tuples.size() == 1 && tuples.get(0).equals(compilation.getCandidateAlias());
+    }
+
+    /**
+     * Method to translate the update clause of a bulk update into the assignments of an Orient SQL "update ... set".
+     * @return The assignments, comma-separated
+     * @throws FilterNotParsableException if an assignment can't be expressed in Orient SQL
+     */
+    public String translateUpdate()
+    {
+        Expression[] updateExprs = compilation.getExprUpdate();
+        if (updateExprs == null || updateExprs.length == 0)
+        {
+            throw new FilterNotParsableException("");
+        }
+
+        StringBuffer str = new StringBuffer();
+        for (int i = 0; i < updateExprs.length; i++)
+        {
+            Expression updateExpr = updateExprs[i];
+            if (!(updateExpr instanceof DyadicExpression) || updateExpr.getOperator() != Expression.OP_EQ ||
+                !(updateExpr.getLeft() instanceof PrimaryExpression))
+            {
+                throw new FilterNotParsableException(updateExpr.toString());
+            }
+
+            // Only simple values can be set by Orient SQL
+            Expression valueExpr = updateExpr.getRight();
+            if (!(valueExpr instanceof Literal) && !(valueExpr instanceof ParameterExpression))
+            {
+                throw new FilterNotParsableException(updateExpr.toString());
+            }
+
+            if (i > 0)
+            {
+                str.append(", ");
+            }
+            str.append(translate(updateExpr.getLeft())).append(" = ").append(translate(valueExpr));
+        }
+        return str.toString();
+    }
+
+    /**
+     * Method to translate an expression into Orient SQL.
+     * @param exp The expression
+     * @return The Orient SQL
+     * @throws FilterNotParsableException if the expression can't be expressed in Orient SQL
+     */
+    public String translate(Expression exp)
+    {
+        if (exp instanceof PrimaryExpression)
+        {
+            return translateField((PrimaryExpression) exp);
+        }
+        else if (exp instanceof DyadicExpression)
+        {
+            StringBuffer result = new StringBuffer();
+            Operator operator = exp.getOperator();
+            String right = translate(exp.getRight());
+            if ("null".equals(right) && (operator == Expression.OP_EQ || operator == Expression.OP_NOTEQ))
+            {
+                // Orient SQL compares with null using "is"
+                result.append(translate(exp.getLeft()));
+                result.append(operator == Expression.OP_EQ ? " is null" : " is not null");
+                return result.toString();
+            }
+
+            result.append("(");
+            result.append(translate(exp.getLeft()));
+            result.append(" ");
+            result.append(translateOperator(operator));
+            result.append(" ");
+            result.append(right);
+            result.append(")");
+            return result.toString();
+        }
+        else if (exp instanceof Literal)
+        {
+            return translateValue(((Literal) exp).getLiteral());
+        }
+        else if (exp instanceof ParameterExpression)
+        {
+            return translateParameter((ParameterExpression) exp);
+        }
+        else if (exp instanceof InvokeExpression && exp.getLeft() != null)
+        {
+            // Method invoked on a field (or on the result of another method), e.g. "name.startsWith('A')"
+            InvokeExpression invokeExpr = (InvokeExpression) exp;
+            OrientMethodTranslator methodTranslator = getMethodTranslator(invokeExpr.getOperation());
+            if (methodTranslator != null)
+            {
+                return methodTranslator.translate(this, translate(invokeExpr.getLeft()), invokeExpr);
+            }
+        }
+
+        // TODO Support subqueries, static methods (e.g Math) and variables
+        throw new FilterNotParsableException(exp.toString());
+    }
+
+    /**
+     * Accessor for the value of an expression that is a literal or a parameter.
+     * @param exp The expression
+     * @return The value
+     * @throws FilterNotParsableException if the expression isn't a literal or a parameter
+     */
+    public Object getValue(Expression exp)
+    {
+        if (exp instanceof Literal)
+        {
+            return ((Literal) exp).getLiteral();
+        }
+        else if (exp instanceof ParameterExpression)
+        {
+            valueDependent = true;
+            return getParameterValue((ParameterExpression) exp);
+        }
+        throw new FilterNotParsableException(exp.toString());
+    }
+
+    /**
+     * Method to translate a method argument that is a literal or a parameter.
+     * @param exp The argument
+     * @return The Orient SQL
+     * @throws FilterNotParsableException if the argument isn't a literal or a parameter
+     */
+    public String translateArgument(Expression exp)
+    {
+        if (!(exp instanceof Literal) && !(exp instanceof ParameterExpression))
+        {
+            throw new FilterNotParsableException(exp.toString());
+        }
+        return translate(exp);
+    }
+
+    /**
+     * Method to translate a parameter, as a "?" placeholder when binding parameters and the value can be bound,
+     * otherwise as a literal of its value.
+     * @param paramExpr The parameter
+     * @return The Orient SQL
+     * @throws FilterNotParsableException if the value has no Orient SQL literal form
+     */
+    protected String translateParameter(ParameterExpression paramExpr)
+    {
+        Object value = getParameterValue(paramExpr);
+        if (bindParameters && isBindable(value))
+        {
+            boundParameters.add(paramExpr);
+            return "?";
+        }
+        valueDependent = true;
+        return translateValue(value);
+    }
+
+    /**
+     * Convenience method to return whether a parameter value can be bound to a "?" placeholder. Null can't, since
+     * Orient SQL compares with null using "is".
+     * @param value The value
+     * @return Whether it can be bound
+     */
+    public static boolean isBindable(Object value)
+    {
+        return value instanceof Number || value instanceof Boolean || value instanceof String ||
+            value instanceof Character || value instanceof Enum;
+    }
+
+    /**
+     * Accessor for the value to bind to a placeholder for a parameter value, in the same form as translateValue
+     * would write it.
+     * @param value The (bindable) value
+     * @return The value to bind
+     */
+    public static Object getBindValue(Object value)
+    {
+        if (value instanceof Number || value instanceof Boolean)
+        {
+            return value;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Method to translate a field reference, dropping any leading candidate alias ("this" in JDOQL).
+     * @param primExpr The field reference
+     * @return The Orient SQL field path
+     */
+    protected String translateField(PrimaryExpression primExpr)
+    {
+        List<String> tuples = primExpr.getTuples();
+        int start = 0;
+        if (tuples.size() > 1 && tuples.get(0).equals(compilation.getCandidateAlias()))
+        {
+            start = 1;
+        }
+
+        StringBuffer result = new StringBuffer();
+        for (int i = start; i < tuples.size(); i++)
+        {
+            if (i > start)
+            {
+                result.append(".");
+            }
+            result.append(tuples.get(i));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Method to convert a JDOQL/JPQL operator into its Orient SQL equivalent.
+     * @param operator The operator
+     * @return The Orient SQL operator
+     * @throws FilterNotParsableException if the operator has no Orient SQL equivalent
+     */
+    protected String translateOperator(Operator operator)
+    {
+        if (operator == Expression.OP_EQ)
+        {
+            return "=";
+        }
+        else if (operator == Expression.OP_NOTEQ)
+        {
+            return "<>";
+        }
+        else if (operator == Expression.OP_AND)
+        {
+            return "and";
+        }
+        else if (operator == Expression.OP_OR)
+        {
+            return "or";
+        }
+        else if (operator == Expression.OP_LT || operator == Expression.OP_LTEQ || operator == Expression.OP_GT ||
+            operator == Expression.OP_GTEQ)
+        {
+            return operator.toString().trim();
+        }
+        throw new FilterNotParsableException(operator.toString());
+    }
+
+    /**
+     * Method to write a value as an Orient SQL literal.
+     * @param val The value
+     * @return The literal
+     * @throws FilterNotParsableException if the value has no Orient SQL literal form
+     */
+    protected String translateValue(Object val)
+    {
+        if (val == null)
+        {
+            return "null";
+        }
+        else if (val instanceof Number || val instanceof Boolean)
+        {
+            return val.toString();
+        }
+        else if (val instanceof String || val instanceof Character || val instanceof Enum)
+        {
+            // Quote the value, escaping any backslashes and quotes in it so it can't end the literal
+            return "'" + val.toString().replace("\\", "\\\\").replace("'", "\\'") + "'";
+        }
+        throw new FilterNotParsableException(val.toString());
+    }
+
+    /**
+     * Method to check the number of arguments of a method invocation.
+     * @param invokeExpr The invocation
+     * @param number Number of arguments expected
+     * @return The arguments
+     * @throws FilterNotParsableException if the number of arguments is different
+     */
+    protected static List<Expression> checkArguments(InvokeExpression invokeExpr, int number)
+    {
+        List<Expression> args = invokeExpr.getArguments();
+        if ((args == null ? 0 : args.size()) != number)
+        {
+            throw new FilterNotParsableException(invokeExpr.toString());
+        }
+        return args;
+    }
+
+    /**
+     * Translator of String.startsWith, String.endsWith and String.contains into an Orient SQL "like" with
+     * a "%" wildcard. Orient has no way to escape a "%" in a "like" pattern, so a value containing one is
+     * instead matched with "indexOf()" or "right()", which take it literally.
+     */
+    protected static class LikeMethodTranslator implements OrientMethodTranslator
+    {
+        private final boolean wildcardBefore;
+
+        private final boolean wildcardAfter;
+
+        LikeMethodTranslator(boolean wildcardBefore, boolean wildcardAfter)
+        {
+            this.wildcardBefore = wildcardBefore;
+            this.wildcardAfter = wildcardAfter;
+        }
+
+        public String translate(OrientQueryTranslator translator, String target, InvokeExpression invokeExpr)
+        {
+            Object value = translator.getValue(checkArguments(invokeExpr, 1).get(0));
+            if (!(value instanceof String))
+            {
+                throw new FilterNotParsableException(invokeExpr.toString());
+            }
+            String str = (String) value;
+            if (str.indexOf('%') < 0)
+            {
+                String pattern = (wildcardBefore ? "%" : "") + str + (wildcardAfter ? "%" : "");
+                return "(" + target + " like " + translator.translateValue(pattern) + ")";
+            }
+
+            // A "%" in the value would be taken as a wildcard by "like"
+            String literal = translator.translateValue(str);
+            if (wildcardBefore && wildcardAfter)
+            {
+                return "(" + target + ".indexOf(" + literal + ") > -1)";
+            }
+            else if (wildcardAfter)
+            {
+                return "(" + target + ".indexOf(" + literal + ") = 0)";
+            }
+            return "(" + target + ".right(" + str.length() + ") = " + literal + ")";
+        }
+    }
+
+    /**
+     * Translator of "contains", which is String.contains or Collection.contains depending on the type of the
+     * target. String.contains is a "like" with "%" either side, since the Orient SQL "contains" operator
+     * only looks for an element of a collection. Anything else is left to be evaluated in memory.
+     */
+    protected static class ContainsMethodTranslator implements OrientMethodTranslator
+    {
+        private final OrientMethodTranslator stringTranslator = new LikeMethodTranslator(true, true);
+
+        private final OrientMethodTranslator collectionTranslator = new OperatorMethodTranslator("contains");
+
+        public String translate(OrientQueryTranslator translator, String target, InvokeExpression invokeExpr)
+        {
+            Expression targetExpr = invokeExpr.getLeft();
+            Class type = (targetExpr != null && targetExpr.getSymbol() != null) ?
+                targetExpr.getSymbol().getValueType() : null;
+            if (type == String.class)
+            {
+                return stringTranslator.translate(translator, target, invokeExpr);
+            }
+            else if (type != null && Collection.class.isAssignableFrom(type))
+            {
+                return collectionTranslator.translate(translator, target, invokeExpr);
+            }
+            throw new FilterNotParsableException(invokeExpr.toString());
+        }
+    }
+
+    /**
+     * Translator of a method with one argument into an Orient SQL operator, e.g. String.matches into "matches".
+     */
+    protected static class OperatorMethodTranslator implements OrientMethodTranslator
+    {
+        private final String operator;
+
+        OperatorMethodTranslator(String operator)
+        {
+            this.operator = operator;
+        }
+
+        public String translate(OrientQueryTranslator translator, String target, InvokeExpression invokeExpr)
+        {
+            Expression argExpr = checkArguments(invokeExpr, 1).get(0);
+            return "(" + target + " " + operator + " " + translator.translateArgument(argExpr) + ")";
+        }
+    }
+
+    /**
+     * Translator of a method into the Orient SQL method of the same meaning, e.g. Collection.size into "size()".
+     */
+    protected static class FunctionMethodTranslator implements OrientMethodTranslator
+    {
+        private final String function;
+
+        private final int numberOfArgs;
+
+        FunctionMethodTranslator(String function, int numberOfArgs)
+        {
+            this.function = function;
+            this.numberOfArgs = numberOfArgs;
+        }
+
+        public String translate(OrientQueryTranslator translator, String target, InvokeExpression invokeExpr)
+        {
+            List<Expression> args = checkArguments(invokeExpr, numberOfArgs);
+            StringBuffer str = new StringBuffer(target);
+            str.append(".").append(function).append("(");
+            for (int i = 0; i < numberOfArgs; i++)
+            {
+                if (i > 0)
+                {
+                    str.append(", ");
+                }
+                str.append(translator.translateArgument(args.get(i)));
+            }
+            str.append(")");
+            return str.toString();
+        }
+    }
+
+    /**
+     * Accessor for the value of a parameter, given either by name or by position.
+     * @param paramExpr The parameter
+     * @return The value
+     */
+    protected Object getParameterValue(ParameterExpression paramExpr)
+    {
+        return getParameterValue(parameters, paramExpr);
+    }
+
+    /**
+     * Accessor for the value of a parameter, given either by name or by position.
+     * @param parameters Input parameters, keyed by name or by position
+     * @param paramExpr The parameter
+     * @return The value
+     */
+    public static Object getParameterValue(Map parameters, ParameterExpression paramExpr)
+    {
+        String paramName = paramExpr.getSymbol().getQualifiedName();
+        if (parameters.containsKey(paramName))
+        {
+            return parameters.get(paramName);
+        }
+        return parameters.get(Integer.valueOf(paramExpr.getPosition()));
+    }
+}
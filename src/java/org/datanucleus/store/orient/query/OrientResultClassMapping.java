@@ -0,0 +1,219 @@
+/**********************************************************************
+Copyright (c) 2010 Luigi Dell'Aquila and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+ **********************************************************************/
+package org.datanucleus.store.orient.query;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.store.orient.OrientStoreManager;
+import org.datanucleus.util.Localiser;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * Mapping of the columns of Orient documents onto instances of a result class, as defined by JDO for SQL queries
+ * with a result class: each column is set using a setter or field of the same name (ignoring case), or using
+ * put(Object, Object) when the result class is a Map. The constructor, setters and fields for the columns are looked
+ * up once, when the mapping is created, so mapping a row only sets values.
+ */
+public class OrientResultClassMapping
+{
+    /** Localiser for messages. */
+    protected static final Localiser LOCALISER_ORIENT = Localiser.getInstance(
+        "org.datanucleus.store.orient.Localisation", OrientStoreManager.class.getClassLoader());
+
+    private final Class resultClass;
+
+    /** Names of the columns, in the order of the accessors. */
+    private final String[] columnNames;
+
+    private final Constructor constructor;
+
+    /** Setter (Method) or Field for each column, or null when the result class is a Map. */
+    private final Object[] accessors;
+
+    /**
+     * Constructor, looking up how to set each column on the result class.
+     * @param resultClass The result class
+     * @param columnNames Names of the columns of the documents
+     * @throws NucleusUserException if the result class can't be instantiated, or has no setter or field for a column
+     */
+    public OrientResultClassMapping(Class resultClass, String[] columnNames)
+    {
+        this.resultClass = resultClass;
+        this.columnNames = columnNames;
+
+        Class instanceClass = (resultClass.isInterface() && Map.class.isAssignableFrom(resultClass) ?
+            HashMap.class : resultClass);
+        try
+        {
+            constructor = instanceClass.getDeclaredConstructor(new Class[0]);
+            constructor.setAccessible(true);
+        }
+        catch (Exception e)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.ResultClassInvalid",
+                resultClass.getName()), e);
+        }
+
+        accessors = new Object[columnNames.length];
+        if (Map.class.isAssignableFrom(resultClass))
+        {
+            return;
+        }
+
+        // Index the setters and fields of the result class by lowercase name, so columns match ignoring case
+        Map<String, Method> setters = new HashMap<String, Method>();
+        Method[] methods = resultClass.getMethods();
+        for (int i = 0; i < methods.length; i++)
+        {
+            String name = methods[i].getName();
+            if (name.length() > 3 && name.startsWith("set") && methods[i].getParameterTypes().length == 1 &&
+                !Modifier.isStatic(methods[i].getModifiers()))
+            {
+                setters.put(name.substring(3).toLowerCase(), methods[i]);
+            }
+        }
+        Map<String, Field> fields = new HashMap<String, Field>();
+        for (Class cls = resultClass; cls != null && cls != Object.class; cls = cls.getSuperclass())
+        {
+            Field[] declaredFields = cls.getDeclaredFields();
+            for (int i = 0; i < declaredFields.length; i++)
+            {
+                String name = declaredFields[i].getName().toLowerCase();
+                if (!Modifier.isStatic(declaredFields[i].getModifiers()) && !fields.containsKey(name))
+                {
+                    fields.put(name, declaredFields[i]);
+                }
+            }
+        }
+
+        for (int i = 0; i < columnNames.length; i++)
+        {
+            String name = columnNames[i].toLowerCase();
+            Method setter = setters.get(name);
+            if (setter != null)
+            {
+                accessors[i] = setter;
+                continue;
+            }
+            Field field = fields.get(name);
+            if (field == null)
+            {
+                throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.ResultClassColumnMissing",
+                    resultClass.getName(), columnNames[i]));
+            }
+            field.setAccessible(true);
+            accessors[i] = field;
+        }
+    }
+
+    /**
+     * Accessor for the names of the columns the mapping was created for.
+     * @return The column names
+     */
+    public String[] getColumnNames()
+    {
+        return columnNames;
+    }
+
+    /**
+     * Method to create the result object for a document.
+     * @param doc The document
+     * @return The result object
+     */
+    public Object getObject(ODocument doc)
+    {
+        Object obj = null;
+        try
+        {
+            obj = constructor.newInstance(new Object[0]);
+            for (int i = 0; i < columnNames.length; i++)
+            {
+                Object value = doc.field(columnNames[i]);
+                if (accessors[i] == null)
+                {
+                    ((Map) obj).put(columnNames[i], value);
+                }
+                else if (accessors[i] instanceof Method)
+                {
+                    Method setter = (Method) accessors[i];
+                    setter.invoke(obj, new Object[] {convertValue(value, setter.getParameterTypes()[0])});
+                }
+                else
+                {
+                    Field field = (Field) accessors[i];
+                    field.set(obj, convertValue(value, field.getType()));
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.ResultClassInvalid",
+                resultClass.getName()), e);
+        }
+        return obj;
+    }
+
+    /**
+     * Convenience method to convert a value read from Orient to the type of the setter or field it is set with,
+     * since Orient may return a number of another type than the one declared (e.g Integer for a long).
+     * @param value The value
+     * @param type The type required
+     * @return The value of the required type where it is a number, otherwise the value itself
+     */
+    public static Object convertValue(Object value, Class type)
+    {
+        if (!(value instanceof Number) || type.isInstance(value))
+        {
+            return value;
+        }
+
+        Number number = (Number) value;
+        if (type == long.class || type == Long.class)
+        {
+            return Long.valueOf(number.longValue());
+        }
+        else if (type == int.class || type == Integer.class)
+        {
+            return Integer.valueOf(number.intValue());
+        }
+        else if (type == short.class || type == Short.class)
+        {
+            return Short.valueOf(number.shortValue());
+        }
+        else if (type == byte.class || type == Byte.class)
+        {
+            return Byte.valueOf(number.byteValue());
+        }
+        else if (type == double.class || type == Double.class)
+        {
+            return Double.valueOf(number.doubleValue());
+        }
+        else if (type == float.class || type == Float.class)
+        {
+            return Float.valueOf(number.floatValue());
+        }
+        return value;
+    }
+}
@@ -17,6 +17,7 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.store.orient.query;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -28,6 +29,7 @@ import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.IdentityType;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.connection.ManagedConnection;
+import org.datanucleus.store.connection.ManagedConnectionResourceListener;
 import org.datanucleus.store.orient.OrientStoreManager;
 import org.datanucleus.store.query.AbstractSQLQuery;
 import org.datanucleus.store.query.Query;
@@ -37,6 +39,7 @@ import org.datanucleus.util.NucleusLogger;
 import org.datanucleus.util.StringUtils;
 
 import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 /**
@@ -48,6 +51,12 @@ public class SQLQuery extends AbstractSQLQuery
     protected static final Localiser LOCALISER_ORIENT = Localiser.getInstance(
         "org.datanucleus.store.orient.Localisation", OrientStoreManager.class.getClassLoader());
 
+    /**
+     * Extension giving the number of rows to read at a time, returning results that are read page by page as they
+     * are used rather than all at once. Only applies in an active transaction, to queries without "skip" or "limit".
+     */
+    public static final String EXTENSION_RESULT_PAGE_SIZE = "datanucleus.orient.resultPageSize";
+
     /** State variable for the compilation state */
     protected transient boolean isCompiled = false;
 
@@ -170,8 +179,59 @@ public class SQLQuery extends AbstractSQLQuery
         ODatabaseObjectTx cont = (ODatabaseObjectTx) mconn.getConnection();
         try
         {
-            List results = cont.query(new OSQLSynchQuery<Object>(compiledSQL));
-            return new SQLQueryResult(this, cont, results, resultMetaData);
+            int pageSize = getResultPageSize();
+            boolean documents = returnsDocuments();
+            if (pageSize > 0)
+            {
+                final OrientPagedResultList pagedResults =
+                    new OrientPagedResultList(cont, compiledSQL, getCountSQL(), pageSize, documents);
+                final SQLQueryResult queryResult = new SQLQueryResult(this, cont, pagedResults, resultMetaData,
+                    getResultColumnNames());
+
+                // The rows are read while the transaction is open, so stop reading when its connection is closed
+                mconn.addListener(new ManagedConnectionResourceListener()
+                {
+                    public void managedConnectionPreClose()
+                    {
+                        try
+                        {
+                            queryResult.closingConnection();
+                        }
+                        finally
+                        {
+                            pagedResults.close();
+                        }
+                    }
+
+                    public void managedConnectionPostClose()
+                    {
+                    }
+
+                    public void resourcePostClose()
+                    {
+                    }
+
+                    public void transactionFlushed()
+                    {
+                    }
+
+                    public void transactionPreClose()
+                    {
+                    }
+                });
+                return queryResult;
+            }
+
+            List results = null;
+            if (documents)
+            {
+                results = cont.getUnderlying().query(new OSQLSynchQuery<ODocument>(compiledSQL));
+            }
+            else
+            {
+                results = cont.query(new OSQLSynchQuery<Object>(compiledSQL));
+            }
+            return new SQLQueryResult(this, cont, results, resultMetaData, getResultColumnNames());
         }
         catch (Exception sqlpe)
         {
@@ -183,6 +243,202 @@ public class SQLQuery extends AbstractSQLQuery
         }
     }
 
+    /**
+     * Accessor for whether the rows of the results are mapped from the Orient documents rather than being objects of
+     * the candidate class, i.e. there is result metadata, a result class, or no candidate class. Reading documents
+     * avoids creating persistable objects that are only used for their values, and lets the objects of the persistent
+     * types of result metadata be found among the records the columns link to.
+     * @return Whether to read documents
+     */
+    protected boolean returnsDocuments()
+    {
+        if (resultMetaData != null)
+        {
+            return true;
+        }
+        return getResultClass() != null || candidateClass == null;
+    }
+
+    /**
+     * Accessor for the names of the columns of the results, as named in the documents returned by Orient. Orient
+     * leaves fields that are null out of a document, so the names can't be taken from the rows read. They are taken
+     * from the projection of the query ("select a, b as c from ..."), or from the metadata of the candidate class when
+     * whole records are selected.
+     * @return The column names, or null if they can't be worked out (e.g a function without an alias)
+     */
+    protected String[] getResultColumnNames()
+    {
+        String sql = compiledSQL.trim();
+        int fromStart = sql.toLowerCase().indexOf(" from ");
+        if (fromStart < 6 || !sql.regionMatches(true, 0, "select", 0, 6))
+        {
+            return null;
+        }
+
+        String projection = sql.substring(6, fromStart).trim();
+        if (projection.length() == 0 || projection.equals("*"))
+        {
+            if (candidateClass == null)
+            {
+                return null;
+            }
+            AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(candidateClass,
+                ec.getClassLoaderResolver());
+            if (cmd == null)
+            {
+                return null;
+            }
+            int[] positions = cmd.getAllMemberPositions();
+            String[] names = new String[positions.length];
+            for (int i = 0; i < positions.length; i++)
+            {
+                names[i] = cmd.getMetaDataForManagedMemberAtAbsolutePosition(positions[i]).getName();
+            }
+            return names;
+        }
+
+        // Split the projection at the commas that aren't within brackets
+        List<String> names = new ArrayList<String>();
+        int depth = 0;
+        int itemStart = 0;
+        for (int i = 0; i <= projection.length(); i++)
+        {
+            char c = (i < projection.length() ? projection.charAt(i) : ',');
+            if (c == '(')
+            {
+                depth++;
+            }
+            else if (c == ')')
+            {
+                depth--;
+            }
+            else if (c == ',' && depth == 0)
+            {
+                String name = getColumnName(projection.substring(itemStart, i).trim());
+                if (name == null)
+                {
+                    return null;
+                }
+                names.add(name);
+                itemStart = i + 1;
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Accessor for an Orient SQL query counting the rows of the results, made of the target and "where" clause of the
+     * query. The ordering is left out, since it doesn't change the count, and the query of paged results has no
+     * "skip" or "limit".
+     * @return The count query, or null if the rows can't be counted from the records selected (a distinct, function or
+     *     aggregate projection, or a grouping)
+     */
+    protected String getCountSQL()
+    {
+        String sql = compiledSQL.trim();
+        String lowerSQL = sql.toLowerCase();
+        int fromStart = indexOfKeyword(lowerSQL, " from ", 0);
+        if (fromStart < 6 || !lowerSQL.startsWith("select"))
+        {
+            return null;
+        }
+        String projection = " " + lowerSQL.substring(6, fromStart) + " ";
+        if (projection.indexOf('(') >= 0 || indexOfKeyword(projection, " distinct ", 0) >= 0 ||
+            indexOfKeyword(lowerSQL, " group by ", fromStart) >= 0)
+        {
+            return null;
+        }
+
+        int end = indexOfKeyword(lowerSQL, " order by ", fromStart);
+        return "select count(*)" + sql.substring(fromStart, (end > 0 ? end : sql.length()));
+    }
+
+    /**
+     * Convenience method to find a keyword in Orient SQL, ignoring any occurrence in a quoted string.
+     * @param sql The (lowercase) SQL
+     * @param keyword The (lowercase) keyword, with the spaces around it
+     * @param fromIndex Position to start looking from
+     * @return Position of the keyword, or -1 if not found
+     */
+    private static int indexOfKeyword(String sql, String keyword, int fromIndex)
+    {
+        char quote = 0;
+        for (int i = fromIndex; i < sql.length(); i++)
+        {
+            char c = sql.charAt(i);
+            if (quote != 0)
+            {
+                if (c == quote)
+                {
+                    quote = 0;
+                }
+            }
+            else if (c == '\'' || c == '"')
+            {
+                quote = c;
+            }
+            else if (sql.startsWith(keyword, i))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Convenience method to return the name of the column for an item of the projection, which is its alias if it has
+     * one, otherwise the item itself when it is a field name.
+     * @param item The item of the projection
+     * @return The column name, or null if the item is an expression without an alias
+     */
+    private static String getColumnName(String item)
+    {
+        int alias = item.toLowerCase().lastIndexOf(" as ");
+        String name = (alias > 0 ? item.substring(alias + 4).trim() : item);
+        if (name.length() == 0)
+        {
+            return null;
+        }
+        for (int i = 0; i < name.length(); i++)
+        {
+            if (!Character.isJavaIdentifierPart(name.charAt(i)))
+            {
+                return null;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Accessor for the number of rows to read at a time, as set by the extension "datanucleus.orient.resultPageSize".
+     * Paging needs the database to stay open while the results are used, so only happens in an active transaction,
+     * and can't be combined with a "skip" or "limit" in the query itself. Rows not read by the end of the transaction
+     * can't be read after it, unless loaded at commit with "datanucleus.query.loadResultsAtCommit".
+     * @return The page size, or 0 to read all rows at once
+     */
+    protected int getResultPageSize()
+    {
+        Object ext = getExtension(EXTENSION_RESULT_PAGE_SIZE);
+        if (ext == null || !ec.getTransaction().isActive())
+        {
+            return 0;
+        }
+
+        String sql = compiledSQL.toLowerCase();
+        if (sql.indexOf(" skip ") >= 0 || sql.indexOf(" limit ") >= 0)
+        {
+            return 0;
+        }
+        try
+        {
+            return Integer.parseInt(ext.toString().trim());
+        }
+        catch (NumberFormatException nfe)
+        {
+            throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.PageSizeInvalid", ext));
+        }
+    }
+
     /**
      * Method to perform any necessary pre-processing on the users query statement
      * before we execute it. SQL queries are not modified in any way, as per JDO2 spec [14.7].
@@ -17,29 +17,32 @@ Contributors:
  **********************************************************************/
 package org.datanucleus.store.orient.query;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
+import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.FetchPlan;
 import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.QueryResultMetaData;
+import org.datanucleus.metadata.QueryResultMetaData.PersistentTypeMapping;
 import org.datanucleus.query.QueryUtils;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.orient.OrientStoreManager;
 import org.datanucleus.store.orient.OrientUtils;
 import org.datanucleus.store.query.AbstractQueryResult;
 import org.datanucleus.store.query.Query;
+import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
-import org.datanucleus.util.SoftValueMap;
 import org.datanucleus.util.StringUtils;
-import org.datanucleus.util.WeakValueMap;
 
 import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
 
 /**
  * Result from an SQL query with Orient. Takes the sql4o result and converts it into the result format expected by JDO/JPA
@@ -48,42 +51,67 @@ import com.orientechnologies.orient.core.db.object.ODatabaseObjectTx;
  */
 public class SQLQueryResult extends AbstractQueryResult
 {
+    /** Localiser for messages. */
+    protected static final Localiser LOCALISER_ORIENT = Localiser.getInstance(
+        "org.datanucleus.store.orient.Localisation", OrientStoreManager.class.getClassLoader());
+
     /** Whether to load any unread results at commit (when connection is closed). */
     private boolean loadResultsAtCommit = true; // Default to load
 
-    /** Map of ResultSet object values, keyed by the list index ("0", "1", etc). */
-    private Map resultsObjsByIndex = null;
+    /** Cache of result objects, keyed by the list index. */
+    private IndexedResultCache resultsObjsByIndex = null;
 
     /** Size of results, if known. -1 otherwise. */
-    protected int size = -1;
+    protected volatile int size = -1;
+
+    /** Whether the results have been closed. Checked on every access, without locking. */
+    private volatile boolean closed = false;
 
     /** ODatabase Container, to obtain any more information from where required. */
     ODatabaseObjectTx objectContainer;
 
 
-    List results;
+    /** The results from Orient, never changed once read (so can be read by several threads without locking). */
+    volatile List results;
 
     QueryResultMetaData resultMetaData;
 
+    /** Names of the result columns, from the projection of the query, or null if not known. */
+    private final String[] resultColumnNames;
+
+    /** Mapping of the result columns onto the result class, worked out when the first row is mapped. */
+    private volatile OrientResultClassMapping resultClassMapping;
+
     Class resultClass;
 
     Class candidateClass;
 
     /**
-     * Constructor.
+     * Constructor. Results read page by page (OrientPagedResultList) aren't cached or loaded at commit unless asked
+     * for, and only their first "fetchSize" rows are loaded up front.
      * @param query Query being executed
      * @param cont Object Container in use
      * @param results The results from sql4o
+     * @param resultMetaData MetaData defining the result rows (or null)
+     * @param resultColumnNames Names of the result columns, or null if not known
      */
-    public SQLQueryResult(Query query, ODatabaseObjectTx cont, List results, QueryResultMetaData resultMetaData)
+    public SQLQueryResult(Query query, ODatabaseObjectTx cont, List results, QueryResultMetaData resultMetaData,
+            String[] resultColumnNames)
     {
         super(query);
         this.objectContainer = cont;
+        this.resultColumnNames = resultColumnNames;
         this.results = results;
         this.resultMetaData = resultMetaData;
         this.resultClass = query.getResultClass();
         this.candidateClass = query.getCandidateClass();
 
+        boolean paged = (results instanceof OrientPagedResultList);
+        if (paged)
+        {
+            loadResultsAtCommit = false;
+        }
+
         String ext = (String) query.getExtension("datanucleus.query.loadResultsAtCommit");
         if (ext != null)
         {
@@ -95,15 +123,15 @@ public class SQLQueryResult extends AbstractQueryResult
         {
             if (ext.equalsIgnoreCase("soft"))
             {
-                resultsObjsByIndex = new SoftValueMap();
+                resultsObjsByIndex = new IndexedResultCache(IndexedResultCache.SOFT);
             }
             else if (ext.equalsIgnoreCase("weak"))
             {
-                resultsObjsByIndex = new WeakValueMap();
+                resultsObjsByIndex = new IndexedResultCache(IndexedResultCache.WEAK);
             }
             else if (ext.equalsIgnoreCase("hard"))
             {
-                resultsObjsByIndex = new HashMap();
+                resultsObjsByIndex = new IndexedResultCache(IndexedResultCache.HARD);
             }
             else if (ext.equalsIgnoreCase("none"))
             {
@@ -111,21 +139,29 @@ public class SQLQueryResult extends AbstractQueryResult
             }
             else
             {
-                resultsObjsByIndex = new WeakValueMap();
+                resultsObjsByIndex = new IndexedResultCache(IndexedResultCache.WEAK);
             }
         }
+        else if (paged)
+        {
+            resultsObjsByIndex = null;
+        }
         else
         {
-            resultsObjsByIndex = new WeakValueMap();
+            resultsObjsByIndex = new IndexedResultCache(IndexedResultCache.WEAK);
         }
 
-        size = results.size();
+        if (!paged)
+        {
+            size = results.size();
+        }
 
         if (resultsObjsByIndex != null)
         {
             // Caching results so load up any result objects needed right now
             int fetchSize = query.getFetchPlan().getFetchSize();
-            if (!query.getObjectManager().getTransaction().isActive() || fetchSize == FetchPlan.FETCH_SIZE_GREEDY)
+            if (!paged && (!query.getObjectManager().getTransaction().isActive() ||
+                fetchSize == FetchPlan.FETCH_SIZE_GREEDY))
             {
                 // No transaction or in "greedy" mode so load all results now
                 for (int i = 0; i < size; i++)
@@ -136,7 +172,7 @@ public class SQLQueryResult extends AbstractQueryResult
             else if (fetchSize > 0)
             {
                 // Load up the first "fetchSize" objects now
-                for (int i = 0; i < fetchSize; i++)
+                for (int i = 0; i < fetchSize && hasIndex(i); i++)
                 {
                     getObjectForIndex(i);
                 }
@@ -144,11 +180,27 @@ public class SQLQueryResult extends AbstractQueryResult
         }
     }
 
+    /**
+     * Convenience method to return whether there is a result at an index. Doesn't need the number of results when
+     * they are read page by page.
+     * @param index The index
+     * @return Whether there is a result at the index
+     */
+    protected boolean hasIndex(int index)
+    {
+        if (size < 0 && results instanceof OrientPagedResultList)
+        {
+            return ((OrientPagedResultList) results).exists(index);
+        }
+        return index >= 0 && index < size();
+    }
+
     /**
      * Close the results and free off any resources held.
      */
     public void close()
     {
+        closed = true;
         if (resultsObjsByIndex != null)
         {
             resultsObjsByIndex.clear();
@@ -175,7 +227,7 @@ public class SQLQueryResult extends AbstractQueryResult
     protected void closingConnection()
     {
         // Make sure all rows are loaded.
-        if (loadResultsAtCommit && isOpen())
+        if (loadResultsAtCommit && !closed)
         {
             // Query connection closing message
             NucleusLogger.QUERY.info(LOCALISER.msg("052606", query.toString()));
@@ -208,13 +260,25 @@ public class SQLQueryResult extends AbstractQueryResult
         return StringUtils.toJVMIDString(other).equals(StringUtils.toJVMIDString(this));
     }
 
+    /**
+     * Method to check that the results haven't been closed, without locking.
+     * @throws NucleusUserException if the results have been closed
+     */
+    protected void assertResultsOpen()
+    {
+        if (closed)
+        {
+            throw new NucleusUserException(LOCALISER.msg("052600"));
+        }
+    }
+
     /**
      * Accessor for an iterator for the results.
      * @return The iterator
      */
     public Iterator iterator()
     {
-        assertIsOpen();
+        assertResultsOpen();
         return new QueryResultIterator();
     }
 
@@ -224,7 +288,7 @@ public class SQLQueryResult extends AbstractQueryResult
      */
     public ListIterator listIterator()
     {
-        assertIsOpen();
+        assertResultsOpen();
         return new QueryResultIterator();
     }
 
@@ -249,53 +313,44 @@ public class SQLQueryResult extends AbstractQueryResult
 
         public boolean hasNext()
         {
-            synchronized (SQLQueryResult.this)
+            if (closed)
             {
-                if (!isOpen())
-                {
-                    // Spec 14.6.7 Calling hasNext() on closed Query will return false
-                    return false;
-                }
-
-                // When we aren't at size()-1 we have at least one more element
-                return (iterRowNum <= (size() - 1));
+                // Spec 14.6.7 Calling hasNext() on closed Query will return false
+                return false;
             }
+
+            // When we aren't at size()-1 we have at least one more element
+            return hasIndex(iterRowNum);
         }
 
         public boolean hasPrevious()
         {
-            synchronized (SQLQueryResult.this)
+            if (closed)
             {
-                if (!isOpen())
-                {
-                    // Spec 14.6.7 Calling hasPrevious() on closed Query will return false
-                    return false;
-                }
-
-                // A List has indices starting at 0 so when we have > 0 we have a previous
-                return (iterRowNum > 0);
+                // Spec 14.6.7 Calling hasPrevious() on closed Query will return false
+                return false;
             }
+
+            // A List has indices starting at 0 so when we have > 0 we have a previous
+            return (iterRowNum > 0);
         }
 
         public Object next()
         {
-            synchronized (SQLQueryResult.this)
+            if (closed)
             {
-                if (!isOpen())
-                {
-                    // Spec 14.6.7 Calling next() on closed Query will throw NoSuchElementException
-                    throw new NoSuchElementException(LOCALISER.msg("052600"));
-                }
-
-                if (!hasNext())
-                {
-                    throw new NoSuchElementException("No next element");
-                }
-                Object obj = getObjectForIndex(iterRowNum);
-                iterRowNum++;
+                // Spec 14.6.7 Calling next() on closed Query will throw NoSuchElementException
+                throw new NoSuchElementException(LOCALISER.msg("052600"));
+            }
 
-                return obj;
+            if (!hasNext())
+            {
+                throw new NoSuchElementException("No next element");
             }
+            Object obj = getObjectForIndex(iterRowNum);
+            iterRowNum++;
+
+            return obj;
         }
 
         public int nextIndex()
@@ -309,22 +364,19 @@ public class SQLQueryResult extends AbstractQueryResult
 
         public Object previous()
         {
-            synchronized (SQLQueryResult.this)
+            if (closed)
             {
-                if (!isOpen())
-                {
-                    // Spec 14.6.7 Calling previous() on closed Query will throw NoSuchElementException
-                    throw new NoSuchElementException(LOCALISER.msg("052600"));
-                }
-
-                if (!hasPrevious())
-                {
-                    throw new NoSuchElementException("No previous element");
-                }
+                // Spec 14.6.7 Calling previous() on closed Query will throw NoSuchElementException
+                throw new NoSuchElementException(LOCALISER.msg("052600"));
+            }
 
-                iterRowNum--;
-                return getObjectForIndex(iterRowNum);
+            if (!hasPrevious())
+            {
+                throw new NoSuchElementException("No previous element");
             }
+
+            iterRowNum--;
+            return getObjectForIndex(iterRowNum);
         }
 
         public int previousIndex()
@@ -359,7 +411,7 @@ public class SQLQueryResult extends AbstractQueryResult
         if (resultsObjsByIndex != null)
         {
             // Caching objects, so check the cache for this index
-            obj = resultsObjsByIndex.get("" + index);
+            obj = resultsObjsByIndex.get(index);
             if (obj != null)
             {
                 // Already retrieved so return it
@@ -375,12 +427,12 @@ public class SQLQueryResult extends AbstractQueryResult
         else if (resultClass != null)
         {
             // Each row of the ResultSet is an instance of resultClass
-            // TODO
+            obj = getRowForResultClass(index);
         }
         else if (candidateClass == null)
         {
             // Each row of the ResultSet is an Object or Object[]
-            // TODO
+            obj = getRowForColumns(index);
         }
         else
         {
@@ -390,8 +442,9 @@ public class SQLQueryResult extends AbstractQueryResult
 
         if (resultsObjsByIndex != null)
         {
-            // Put it in our cache, keyed by the list index
-            resultsObjsByIndex.put("" + index, obj);
+            // Put it in our cache, keyed by the list index. Another thread may have got the object for this index
+            // at the same time, in which case all use the one cached first
+            obj = resultsObjsByIndex.putIfAbsent(index, obj);
         }
 
         return obj;
@@ -399,14 +452,153 @@ public class SQLQueryResult extends AbstractQueryResult
 
     /**
      * Accessor for the row object(s) when there is metadata defining the result. Each row of results should follow the
-     * result metadata (JPA).
+     * result metadata (JPA): the object for each persistent type, followed by the values of the scalar columns, as an
+     * Object[] unless there is only one of them. Orient SQL has no joins, so the records a row can hold are its own
+     * (when whole records are selected) and those its columns link to. Each persistent type takes the first of these
+     * records, in column order, that is of its class and not taken by an earlier persistent type, and is null if
+     * there is none. Each object is managed by the ExecutionContext of the query before being returned.
      * @param index Row index
      * @return The row in the required form
      */
     protected Object getRowForResultMetaData(int index)
     {
-        // TODO Implement this
-        return null;
+        ODocument doc = (ODocument) results.get(index);
+        PersistentTypeMapping[] persistentTypes = resultMetaData.getPersistentTypeMappings();
+        String[] columns = resultMetaData.getScalarColumns();
+        int numPersistent = (persistentTypes != null ? persistentTypes.length : 0);
+        int numScalars = (columns != null ? columns.length : 0);
+        if (numPersistent == 0 && numScalars == 0)
+        {
+            return getRowForColumns(index);
+        }
+
+        Object[] values = new Object[numPersistent + numScalars];
+        if (numPersistent > 0)
+        {
+            getPersistentObjects(doc, persistentTypes, values);
+        }
+        for (int i = 0; i < numScalars; i++)
+        {
+            values[numPersistent + i] = doc.field(columns[i]);
+        }
+        return (values.length == 1 ? values[0] : values);
+    }
+
+    /**
+     * Method to find the object of each persistent type of the result metadata in a row, and manage it.
+     * @param doc The document of the row
+     * @param persistentTypes The persistent types
+     * @param values Array to put the objects into, at the position of their persistent type
+     */
+    private void getPersistentObjects(ODocument doc, PersistentTypeMapping[] persistentTypes, Object[] values)
+    {
+        // The records of the row: its own (if a whole record was selected), then those linked by its columns
+        List<ODocument> records = new ArrayList<ODocument>();
+        if (doc.getIdentity().isValid())
+        {
+            records.add(doc);
+        }
+        String[] columnNames = (resultColumnNames != null ? resultColumnNames : doc.fieldNames());
+        for (int i = 0; i < columnNames.length; i++)
+        {
+            Object value = doc.field(columnNames[i]);
+            if (value instanceof ORID)
+            {
+                value = objectContainer.getUnderlying().load((ORID) value);
+            }
+            if (value instanceof ODocument && !records.contains(value))
+            {
+                records.add((ODocument) value);
+            }
+        }
+
+        ExecutionContext ec = query.getObjectManager();
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        boolean[] taken = new boolean[records.size()];
+        for (int i = 0; i < persistentTypes.length; i++)
+        {
+            Class type = clr.classForName(persistentTypes[i].getClassName());
+            for (int j = 0; j < records.size(); j++)
+            {
+                ODocument record = records.get(j);
+                Class recordClass = (taken[j] || record.getClassName() == null ? null :
+                    objectContainer.getEntityManager().getEntityClass(record.getClassName()));
+                if (recordClass != null && type.isAssignableFrom(recordClass))
+                {
+                    taken[j] = true;
+                    Object pc = objectContainer.getUserObjectByRecord(record, null);
+                    AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(pc.getClass(), clr);
+                    OrientUtils.prepareOrientObjectForUse(pc, ec, objectContainer, cmd,
+                        (OrientStoreManager) ec.getStoreManager());
+                    values[i] = pc;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Accessor for the row object(s) when there is a result class. A simple result class (String, a number, etc) takes
+     * the value of the single column, otherwise each row is an instance of the result class with its columns set, as
+     * mapped by an OrientResultClassMapping worked out once for the result columns. Only when the result columns
+     * aren't known are they taken from the first row, which lacks any column that is null in it.
+     * @param index Row index
+     * @return The row in the required form
+     */
+    protected Object getRowForResultClass(int index)
+    {
+        ODocument doc = (ODocument) results.get(index);
+        if (QueryUtils.resultClassIsSimple(resultClass.getName()))
+        {
+            Object[] values = getColumnValues(doc);
+            if (values.length != 1)
+            {
+                throw new NucleusUserException(LOCALISER_ORIENT.msg("Orient.Query.ResultClassSimple",
+                    resultClass.getName(), "" + values.length));
+            }
+            return OrientResultClassMapping.convertValue(values[0], resultClass);
+        }
+
+        OrientResultClassMapping mapping = resultClassMapping;
+        if (mapping == null)
+        {
+            mapping = new OrientResultClassMapping(resultClass,
+                (resultColumnNames != null ? resultColumnNames : doc.fieldNames()));
+            resultClassMapping = mapping;
+        }
+        return mapping.getObject(doc);
+    }
+
+    /**
+     * Accessor for the row object(s) when there is neither a candidate class nor a result class. Each row is the
+     * value of the single column, or an Object[] of the values of the columns.
+     * @param index Row index
+     * @return The row in the required form
+     */
+    protected Object getRowForColumns(int index)
+    {
+        Object[] values = getColumnValues((ODocument) results.get(index));
+        return (values.length == 1 ? values[0] : values);
+    }
+
+    /**
+     * Convenience method to return the values of the result columns of a document, including those that are null
+     * (which Orient leaves out of the document) when the result columns are known.
+     * @param doc The document
+     * @return The values, in the order of the result columns
+     */
+    private Object[] getColumnValues(ODocument doc)
+    {
+        if (resultColumnNames == null)
+        {
+            return doc.fieldValues();
+        }
+        Object[] values = new Object[resultColumnNames.length];
+        for (int i = 0; i < resultColumnNames.length; i++)
+        {
+            values[i] = doc.field(resultColumnNames[i]);
+        }
+        return values;
     }
 
     /**
@@ -424,28 +616,32 @@ public class SQLQueryResult extends AbstractQueryResult
         return obj;
     }
 
-    public synchronized Object get(int index)
+    public Object get(int index)
     {
-        assertIsOpen();
+        assertResultsOpen();
         return getObjectForIndex(index);
     }
 
     public int size()
     {
-        assertIsOpen();
-        return results.size();
+        assertResultsOpen();
+        if (size < 0)
+        {
+            size = results.size();
+        }
+        return size;
     }
 
     public Object[] toArray()
     {
-        assertIsOpen();
+        assertResultsOpen();
         // TODO Auto-generated method stub
         return null;
     }
 
     public Object[] toArray(Object[] arg0)
     {
-        assertIsOpen();
+        assertResultsOpen();
         // TODO Auto-generated method stub
         return null;
     }
@@ -140,7 +140,7 @@ public class OrientIncrementGenerator extends AbstractDatastoreGenerator
         // Find the NucleusSequence object in Orient
         NucleusSequence seq = null;
         NucleusSequence baseSeq = new NucleusSequence(sequenceName);
-        OrientStoreManager.registerClassInOrient(container, NucleusSequence.class);
+        ((OrientStoreManager) storeMgr).registerClassWithContainer(container, NucleusSequence.class);
         try
         {
             List queryResult = container.query(new OSQLSynchQuery<Object>(